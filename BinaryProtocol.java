@@ -0,0 +1,314 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Binary Protocol - The compact wire format agreed through the Handshake. Each message is a frame: its length (as a
+ * varint), then an opcode byte, then the operation's fields. IDs are unsigned varints, coordinates and deltas are
+ * zigzag varints, and colors are 4-byte ARGB ints.
+ * A shape is its type byte, the number of coordinates (a varint), the coordinates, and its color. Each coordinate is
+ * sent relative to the one two places before it (the same axis of the previous point), so the second corner of a
+ * rectangle is really its size, and each point of a polyline is the small step from the last one. The points streamed
+ * with a stroke (APPEND_POINTS) are sent the same way, as a count and then the coordinates.
+ * The opcodes and shape type codes come from the Operation and ShapeType registries; frames are decoded by
+ * MessageDecoder. The server encodes the messages it sends from their fields (see WireMessage and Shape.writeTo);
+ * encoding from the text is left for anything else.
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public class BinaryProtocol
+{
+    public static final int MAX_FRAME = 16 * 1024 * 1024; // Anything longer is taken to be garbage.
+
+    /**
+     * Encodes a text message as a binary frame (including its length), or several lines of messages (a batch) as one
+     * frame after another.
+     *
+     * @param message The message, as it would be sent as text.
+     */
+    public static byte[] encode(String message)
+    {
+        if (message.indexOf('\n') >= 0)
+        {
+            ByteArrayOutputStream frames = new ByteArrayOutputStream();
+            for (String line : message.split("\n"))
+                frames.writeBytes(encode(line));
+
+            return frames.toByteArray();
+        }
+
+        String[] parts = message.split(" ");
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        Operation operation = Operation.valueOf(parts[0]);
+        body.write(operation.opcode);
+
+        switch (operation)
+        {
+            case ADD -> writeShape(body, parts, 1);
+
+            case ADD_ID ->
+            {
+                writeVarint(body, Integer.parseInt(parts[1]));
+                writeShape(body, parts, 2);
+            }
+
+            case MOVE ->
+            {
+                writeVarint(body, Integer.parseInt(parts[1]));
+                writeSigned(body, Integer.parseInt(parts[2]));
+                writeSigned(body, Integer.parseInt(parts[3]));
+            }
+
+            case RECOLOR ->
+            {
+                writeVarint(body, Integer.parseInt(parts[1]));
+                writeInt(body, Integer.parseInt(parts[2]));
+            }
+
+            case DELETE -> writeVarint(body, Integer.parseInt(parts[1]));
+
+            case RESET ->
+            {
+                // No fields.
+            }
+
+            case BATCH -> writeVarint(body, Integer.parseInt(parts[1]));
+
+            case BEGIN_STROKE ->
+            {
+                writeSigned(body, Integer.parseInt(parts[1]));
+                writeSigned(body, Integer.parseInt(parts[2]));
+                writeInt(body, Integer.parseInt(parts[3]));
+            }
+
+            case APPEND_POINTS -> writeCoordinates(body, parts, 1, parts.length - 1);
+
+            case APPEND_POINTS_ID ->
+            {
+                writeVarint(body, Integer.parseInt(parts[1]));
+                writeCoordinates(body, parts, 2, parts.length - 2);
+            }
+
+            case END_STROKE ->
+            {
+                // No fields.
+            }
+
+            case SEQ, ACK ->
+            {
+                long seq = Long.parseLong(parts[1]);
+                writeVarlong(body, (seq << 1) ^ (seq >> 63));
+            }
+        }
+
+        return frame(body);
+    }
+
+    /**
+     * Encodes a message as a binary frame straight from its fields, with no text in between.
+     *
+     * @param operation The message's operation (its opcode goes first).
+     * @param fields Writes the operation's fields.
+     */
+    public static byte[] encode(Operation operation, Consumer<ByteArrayOutputStream> fields)
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(operation.opcode);
+        fields.accept(body);
+        return frame(body);
+    }
+
+    /**
+     * Writes a frame out: its length, then its body (the opcode and fields), so a caller writing many frames can build
+     * each one in the same buffer.
+     */
+    public static void writeFrame(OutputStream out, ByteArrayOutputStream body) throws IOException
+    {
+        // Writing the length as a varint (see writeVarint), straight onto the stream.
+        int length = body.size();
+        while ((length & ~0x7F) != 0)
+        {
+            out.write((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+
+        out.write(length);
+        body.writeTo(out);
+    }
+
+    /**
+     * Reads the length at the start of a frame, if all of it has arrived.
+     *
+     * @param in The bytes received so far; its position is moved past the length only if the length is complete.
+     * @return The length, or -1 if more bytes are needed.
+     */
+    public static int readLength(ByteBuffer in)
+    {
+        int start = in.position();
+
+        try
+        {
+            int length = readVarint(in);
+            if (length < 0 || length > MAX_FRAME)
+                throw new IllegalArgumentException("Frame too long");
+
+            return length;
+        }
+
+        catch (BufferUnderflowException e)
+        {
+            in.position(start);
+            return -1;
+        }
+    }
+
+    /**
+     * Writes an unsigned varint: 7 bits per byte, low bits first, with the top bit set on all but the last byte.
+     */
+    public static void writeVarint(ByteArrayOutputStream out, int value)
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        out.write(value);
+    }
+
+    /**
+     * Writes an unsigned varint straight into a buffer (such as a frame's length, in front of a body built elsewhere).
+     */
+    public static void writeVarint(ByteBuffer out, int value)
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        out.put((byte) value);
+    }
+
+    /**
+     * Writes an unsigned varint that may need more than 32 bits.
+     */
+    public static void writeVarlong(ByteArrayOutputStream out, long value)
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        out.write((int) value);
+    }
+
+    /**
+     * Reads an unsigned varint.
+     */
+    public static int readVarint(ByteBuffer in)
+    {
+        int value = 0;
+
+        for (int shift = 0; shift < 35; shift += 7)
+        {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    /**
+     * Writes a signed value as a zigzag varint, so that small negative numbers stay small: 0, -1, 1, -2... become
+     * 0, 1, 2, 3...
+     */
+    public static void writeSigned(ByteArrayOutputStream out, int value)
+    {
+        writeVarint(out, (value << 1) ^ (value >> 31));
+    }
+
+    /**
+     * Writes a 4-byte int, high byte first.
+     */
+    public static void writeInt(ByteArrayOutputStream out, int value)
+    {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    /**
+     * Writes a run of coordinates (x1, y1, x2, y2...): how many there are, then each one relative to the one two
+     * places before it (the first point is relative to 0, 0).
+     *
+     * @param coordinates The coordinates, of which only the first count are written.
+     */
+    public static void writeCoordinates(ByteArrayOutputStream out, int[] coordinates, int count)
+    {
+        writeVarint(out, count);
+
+        for (int i = 0; i < count; i += 1)
+            writeSigned(out, coordinates[i] - (i >= 2 ? coordinates[i - 2] : 0));
+    }
+
+    /**
+     * Helper Method - Puts a frame's length in front of its body.
+     */
+    private static byte[] frame(ByteArrayOutputStream body)
+    {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(body.size() + 5);
+        writeVarint(frame, body.size());
+        frame.writeBytes(body.toByteArray());
+        return frame.toByteArray();
+    }
+
+    /**
+     * Helper Method - Writes a shape from its text form: the type, the coordinates, and the color (last).
+     *
+     * @param parts The message parts.
+     * @param start Where in the parts the shape starts.
+     */
+    private static void writeShape(ByteArrayOutputStream out, String[] parts, int start)
+    {
+        int count = parts.length - start - 2; // Leaving out the type and the color.
+        if (count < 2)
+            throw new IllegalArgumentException("Too few coordinates");
+
+        ShapeType type = ShapeType.forName(parts[start]);
+        if (type == null)
+            throw new IllegalArgumentException("Unknown shape " + parts[start]);
+
+        out.write(type.code);
+        writeCoordinates(out, parts, start + 1, count);
+        writeInt(out, Integer.parseInt(parts[parts.length - 1]));
+    }
+
+    /**
+     * Helper Method - Writes a run of coordinates from their text form: how many there are, then each one relative to
+     * the one two places before it (the first point is relative to 0, 0).
+     *
+     * @param parts The message parts.
+     * @param start Where in the parts the coordinates start.
+     * @param count The number of coordinates.
+     */
+    private static void writeCoordinates(ByteArrayOutputStream out, String[] parts, int start, int count)
+    {
+        writeVarint(out, count);
+
+        for (int i = 0; i < count; i += 1)
+        {
+            int previous = i >= 2 ? Integer.parseInt(parts[start + i - 2]) : 0;
+            writeSigned(out, Integer.parseInt(parts[start + i]) - previous);
+        }
+    }
+}
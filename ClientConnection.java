@@ -0,0 +1,21 @@
+/**
+ * Client Connection - One client attached to the sketch server, regardless of how its socket is being serviced
+ * (a communicator thread or a selector event loop).
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public interface ClientConnection
+{
+    /**
+     * Sends a message to the client.
+     *
+     * @param message The message to send (shared with the other clients it is being broadcast to).
+     */
+    public void send(WireMessage message);
+
+    /**
+     * Starts the client over from a fresh copy of the sketch, dropping whatever is still queued for it (when the room
+     * itself has started over from a copy of another server's sketch, say).
+     */
+    public void resync();
+}
@@ -13,9 +13,25 @@ import javax.swing.*;
 
 public class Editor extends JFrame
 {
-    // IP address of sketch server, "localhost" for your own machine or ask a friend for their IP address.
+    // IP address of sketch server, "localhost" for your own machine or ask a friend for their IP address. A port can
+    // follow it (such as "localhost:4243", for a follower server on the same machine); 4242 if not.
     private static String serverIP = "localhost";
 
+    // The sketch (room) on the server to join, such as "team-a" ("" for the server's default room).
+    private static String room = "";
+
+    // Whether to switch to the compact binary protocol, if the server offers it (false to stay on text lines).
+    private static boolean binary = true;
+
+    // How close (in pixels) a point drawn in a freehand stroke may be to the last one kept before it is skipped (0 to
+    // keep every point). Only used while drawing; simplifying the finished stroke is up to the server.
+    private static double drawSkipTolerance = 1.0;
+
+    // How often to send the server a dragged shape's movement, or the points a freehand stroke has gained, in
+    // milliseconds (0 to send on every drag event). Movement in between is added up, so the shape ends up in exactly
+    // the same place, and points are sent in chunks; about one frame keeps the drag smooth.
+    private static int dragInterval = 16;
+
     private static final int width = 800, height = 800; // Canvas Size
 
     // Current Settings -> GUI
@@ -31,9 +47,15 @@ public class Editor extends JFrame
     // Drawing State
     private Shape currentShape = null; // Current shape (if any) being drawn.
     private Sketch sketch; // Holds and handles all the completed objects.
-    private int currentShapeID = -1; // Current shape ID (if any; else -1) being moved.
+    private volatile int currentShapeID = -1; // Current shape ID (if any; else -1) being moved.
     private Point drawFrom = null; // Where the drawing started.
     private Point moveFrom = null; // Where the object is as it's being dragged.
+    private int dragDX = 0, dragDY = 0; // Movement of the dragged object not yet sent to the server.
+    private StringBuilder strokePoints = new StringBuilder(); // Points of the stroke being drawn not yet sent (" x y").
+    private Timer dragTimer; // Sends the movement (or points) added up since the last time, once per drag interval.
+
+    private JComponent canvas; // Where the sketch is drawn.
+    private transient TileCache tiles; // The sketch, already drawn (apart from the shape being moved).
 
     // Communication
     private EditorCommunicator communicator; // Communication with the sketch server.
@@ -43,13 +65,18 @@ public class Editor extends JFrame
         super("Graphical Editor");
 
         sketch = new Sketch();
+        tiles = new TileCache(sketch);
+
+        // A Swing timer, so the movement is sent from the event thread, along with everything else.
+        dragTimer = new Timer(dragInterval, e -> sendDrag());
+        dragTimer.setRepeats(false);
 
         // Connect to server.
-        communicator = new EditorCommunicator(serverIP, this);
+        communicator = new EditorCommunicator(serverIP, this, binary, room);
         communicator.start();
 
         // Helpers to create the canvas and GUI (buttons, etc.).
-        JComponent canvas = setupCanvas();
+        canvas = setupCanvas();
         JComponent gui = setupGUI();
 
         // Put the buttons and canvas together into the window.
@@ -180,26 +207,67 @@ public class Editor extends JFrame
 
     /**
      * Draw Sketch - Draws all the shapes in the sketch, along with the object currently being drawn in this editor (not
-     * yet part of the sketch).
+     * yet part of the sketch). Only the area being repainted (the clip) is drawn, and the sketch is copied from the
+     * tile cache, so the cost of a paint goes with the area, not with the number of shapes. The shape being drawn, or
+     * moved, changes all the time, so it is left out of the tiles and drawn on top of them. Neither the sketch (read
+     * from its latest version, see Sketch) nor the tiles are locked, so a paint never waits on a change arriving.
      */
-    public synchronized void drawSketch(Graphics g)
+    public void drawSketch(Graphics g)
     {
-        if (!sketch.IDMap.isEmpty())
+        // Drawing only the part of the clip on the canvas (the clip can be anything, if the graphics come from
+        // elsewhere).
+        java.awt.Rectangle visible = new java.awt.Rectangle(0, 0, canvas.getWidth(), canvas.getHeight());
+        java.awt.Rectangle clip = g.getClipBounds();
+        if (clip != null)
+            visible = visible.intersection(clip);
+
+        if (!visible.isEmpty())
+            tiles.draw(g, visible, currentShapeID);
+
+        // Drawing the shape being moved (as it is in the sketch, plus any movement not sent to the server yet).
+        if (currentShapeID != -1)
         {
-            // Drawing all the shapes in the sketch.
-            for (int i = 0; i <= sketch.IDMap.lastKey(); i += 1)
+            Shape moving = sketch.getShape(currentShapeID);
+            if (moving != null)
             {
-                if (sketch.IDMap.containsKey(i))
-                    sketch.IDMap.get(i).draw(g);
+                g.translate(dragDX, dragDY);
+                moving.draw(g);
+                g.translate(-dragDX, -dragDY);
             }
         }
 
         // Drawing the shape currently being drawn in the editor (not yet part of the sketch).
         // If the current shape exists...
-        if (currentShape != null)
+        else if (currentShape != null)
             currentShape.draw(g); // Draw it.
+    }
+
+    /**
+     * Sketch Changed - Notes that the sketch has changed in an area (after the change has been made), so the tiles
+     * there are drawn again. Changes to the shape being moved are left out, as it isn't in the tiles. The caller still
+     * has to ask for the area to be repainted.
+     *
+     * @param ID The ID of the shape that changed (-1 for a new shape, or more than one).
+     * @param area The area (null for everywhere).
+     */
+    public void sketchChanged(int ID, java.awt.Rectangle area)
+    {
+        if (ID == -1 || ID != currentShapeID)
+            tiles.invalidate(area);
+    }
 
-        repaint();
+    /**
+     * Repaint Area - Asks for part of the canvas to be repainted (safe to call from any thread). Swing gathers up the
+     * areas asked for, and repaints them together.
+     *
+     * @param area The area to repaint, in canvas coordinates (null for all of it).
+     */
+    public void repaintArea(java.awt.Rectangle area)
+    {
+        if (area == null)
+            canvas.repaint();
+        else
+            canvas.repaint(area);
     }
 
     /**
@@ -224,17 +292,26 @@ public class Editor extends JFrame
                 case "Segment" -> currentShape = new Segment(drawFrom.x, drawFrom.y, color);
                 case "Polyline" -> currentShape = new Polyline(drawFrom.x, drawFrom.y, color);
             }
+
+            // Freehand strokes are streamed to the server as they are drawn, so everyone else sees them being drawn.
+            if (currentShape instanceof Polyline)
+                communicator.send("BEGIN_STROKE " + drawFrom.x + " " + drawFrom.y + " " + color.getRGB());
         }
 
         // In moving mode, (request to) start dragging if clicked in a shape.
         else if (mode == Editor.Mode.MOVE)
         {
             // Checking to make sure an object was clicked.
-            if (sketch.IDFromClicked(p) != -1)
+            int ID = sketch.IDFromClicked(p);
+            if (ID != -1)
             {
-                currentShapeID = sketch.IDFromClicked(p);
-                currentShape = sketch.IDMap.get(sketch.IDFromClicked(p));
+                currentShapeID = ID;
+                currentShape = sketch.getShape(ID);
                 moveFrom = p;
+
+                // Taking the shape out of the tiles, to be drawn on top of them while it moves.
+                tiles.invalidate(currentShape.getBounds());
+                repaintArea(currentShape.getBounds());
             }
         }
 
@@ -242,19 +319,23 @@ public class Editor extends JFrame
         else if (mode == Mode.RECOLOR)
         {
             // Checking to make sure an object was clicked.
-            if (sketch.IDFromClicked(p) != -1)
-                communicator.send("RECOLOR " + sketch.IDFromClicked(p) + " " + color.getRGB());
+            int ID = sketch.IDFromClicked(p);
+            if (ID != -1)
+                communicator.recolor(ID, color);
         }
 
         // In deleting mode, (request to) delete clicked shape.
         else if (mode == Mode.DELETE)
         {
             // Checking to make sure an object was clicked.
-            if (sketch.IDFromClicked(p) != -1)
-                communicator.send("DELETE " + sketch.IDFromClicked(p));
+            int ID = sketch.IDFromClicked(p);
+            if (ID != -1)
+                communicator.delete(ID);
         }
 
-        repaint();
+        // Refreshing the canvas where a new shape is being drawn (anything else is repainted as it changes).
+        if (mode == Mode.DRAW && currentShape != null)
+            repaintArea(currentShape.getBounds());
     }
 
     /**
@@ -268,6 +349,8 @@ public class Editor extends JFrame
             // Check to make sure there is a shape.
             if (currentShape != null)
             {
+                java.awt.Rectangle before = currentShape.getBounds(); // Where the shape was, to repaint.
+
                 if (shapeType.equals("Ellipse"))
                 {
                     ((Ellipse) currentShape).setCorners(drawFrom.x, drawFrom.y, p.x, p.y);
@@ -294,11 +377,23 @@ public class Editor extends JFrame
 
                 else if (shapeType.equals("Polyline"))
                 {
-                    ((Polyline) currentShape).addPoint(p.x, p.y);
+                    // Adding the point to those to send next (unless it was too close to the last one to keep).
+                    if (((Polyline) currentShape).addPoint(p.x, p.y, drawSkipTolerance))
+                    {
+                        strokePoints.append(' ').append(p.x).append(' ').append(p.y);
+
+                        if (dragInterval == 0)
+                            sendDrag();
+                        else if (!dragTimer.isRunning())
+                            dragTimer.start();
+                    }
 
                     // Updating the moveFrom location based on the location of the center of the shape.
                     moveFrom = new Point((int) ((p.x - drawFrom.x) / 2.0), (int) ((p.y - drawFrom.y) / 2.0));
                 }
+
+                // Refreshing the canvas where the shape was and where it is now.
+                repaintArea(before.union(currentShape.getBounds()));
             }
         }
 
@@ -307,15 +402,25 @@ public class Editor extends JFrame
         {
             if (currentShape != null && moveFrom != null)
             {
-                communicator.send("MOVE " + currentShapeID + " " + (p.x - moveFrom.x) + " " + (p.y - moveFrom.y));
+                // Adding up the movement, to be sent at the end of the drag interval (and drawn until then), and
+                // repainting where the shape was and where it is now.
+                java.awt.Rectangle before = dragged();
+                dragDX += p.x - moveFrom.x;
+                dragDY += p.y - moveFrom.y;
+
+                java.awt.Rectangle after = dragged();
+                if (before != null && after != null)
+                    repaintArea(before.union(after));
+
+                if (dragInterval == 0)
+                    sendDrag();
+                else if (!dragTimer.isRunning())
+                    dragTimer.start();
 
                 // Updating the moveFrom location based on the new point.
                 moveFrom = p;
             }
         }
-
-        // Refreshing the canvas when the appearance has changed.
-        repaint();
     }
 
     /**
@@ -323,17 +428,87 @@ public class Editor extends JFrame
      */
     private void handleRelease()
     {
+        // Sending whatever is left of the movement (so the shape ends up exactly where it was dropped), or of the points.
+        dragTimer.stop();
+        sendDrag();
+
         // Check to see if the mode is DRAW.
         if (mode == Mode.DRAW)
         {
+            // Finishing a freehand stroke (the server simplifies it).
+            if (currentShape instanceof Polyline)
+                communicator.send("END_STROKE");
+
             // Passing the add new object request on to the server and updating the current shape.
-            communicator.send("ADD " + currentShape);
+            else if (currentShape != null)
+                communicator.send(currentShape.appendTo(new StringBuilder("ADD ")).toString());
+        }
+
+        // Refreshing the canvas where the new shape was being drawn, until the server adds it to the sketch. In moving
+        // mode, stop dragging the object.
+        if (mode == Mode.DRAW && currentShape != null)
+            repaintArea(currentShape.getBounds());
+
+        // Putting the moved shape back into the tiles, wherever it has got to.
+        if (currentShapeID != -1)
+        {
+            int ID = currentShapeID;
+            currentShapeID = -1; // First, so a MOVE arriving meanwhile redraws its own tiles.
+
+            java.awt.Rectangle bounds = sketch.getBounds(ID);
+
+            if (bounds != null)
+            {
+                tiles.invalidate(bounds);
+                repaintArea(bounds);
+            }
         }
 
         currentShape = null;
+    }
+
+    /**
+     * Helper Method - Sends the server what has been added up since the last time (if anything): the movement of the
+     * dragged object (which moves it in the sketch, if the server acknowledges this editor's changes), or the points
+     * of the stroke being drawn.
+     */
+    private void sendDrag()
+    {
+        if (dragDX != 0 || dragDY != 0)
+        {
+            // Drawing the shape without the movement from here on, as it is in the sketch now (or will be, once the
+            // server sends it back).
+            java.awt.Rectangle before = dragged();
+            int dx = dragDX, dy = dragDY;
+            dragDX = 0;
+            dragDY = 0;
+
+            communicator.move(currentShapeID, dx, dy);
+            java.awt.Rectangle after = dragged();
+            if (before != null && after != null)
+                repaintArea(before.union(after));
+        }
+
+        if (strokePoints.length() > 0)
+            communicator.send("APPEND_POINTS" + strokePoints);
+
+        strokePoints.setLength(0);
+    }
+
+    /**
+     * Helper Method - Where the shape being moved is drawn: where it is in the sketch, plus the movement not sent yet.
+     *
+     * @return The bounds, or null if there is no such shape.
+     */
+    private java.awt.Rectangle dragged()
+    {
+        java.awt.Rectangle bounds = sketch.getBounds(currentShapeID);
+        if (bounds == null)
+            return null;
 
-        // Refreshing the canvas when the appearance has changed. In moving mode, stop dragging the object.
-        repaint();
+        bounds = new java.awt.Rectangle(bounds);
+        bounds.translate(dragDX, dragDY);
+        return bounds;
     }
 
     public static void main(String[] args)
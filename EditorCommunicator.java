@@ -3,31 +3,67 @@ import java.io.*;
 import java.net.Socket;
 
 /**
- * Editor Communicator - Handles communication to/from the server for the editor.
+ * Editor Communicator - Handles communication to/from the server for the editor. If the server offers the binary
+ * protocol in its HELLO (and the editor wants it), both directions switch to binary frames after the handshake. The
+ * editor's HELLO also names the room (sketch) it joins, if not the default one.
+ * If the server numbers its changes (the resume capability), the editor keeps count of the last one it has applied, and
+ * when the connection drops, it reconnects and asks to pick up from there, so it is only sent the changes it missed
+ * (unless it has been gone too long, when it gets a fresh copy of the sketch as before).
+ * If the server acknowledges the editor's changes (the ack capability), the editor's own MOVEs, RECOLORs and DELETEs
+ * are applied to its sketch as they are sent, rather than when the server sends them back, and kept as pending until
+ * the server's ACK for them; changes from everyone else are applied under them (see PendingChanges).
  *
  * @author Chris Bailey-Kellogg, Dartmouth CS 10, Fall 2012, Winter 2014
  * @author Travis Peters, Dartmouth CS 10, Winter 2015
  * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
  */
-public class EditorCommunicator extends Thread
+public class EditorCommunicator extends Thread implements MessageHandler
 {
-    private PrintWriter out; // To Server
-    private BufferedReader in; // From Server
+    private String serverIP; // Where the server is (for reconnecting).
+    private OutputStream out; // To Server
+    private WireReader in; // From Server
     protected Editor editor; // Handling Communicator For
+    private boolean binary; // Whether to ask for the binary protocol.
+    private String room; // The room to join ("" for the default room).
+    private boolean binaryIn, binaryOut; // The format in use each way, text until the handshake says otherwise.
+    private MessageDecoder decoder = new MessageDecoder(); // Decodes the messages from the server.
+    private int batchRemaining; // Messages still to come in the current batch (if any).
+    private java.awt.Rectangle dirty; // The area changed since the last repaint (null if none).
+    private boolean dirtyAll; // Whether everything has changed since the last repaint.
+    private String epoch; // The run of the room the server numbers its changes in (null if it doesn't).
+    private long seq = -1; // The number of the last change applied (-1 if not known).
+    private boolean skipping; // Whether to ignore what the server sends until its WELCOME (when picking up from seq).
+    private boolean acking; // Whether the server acknowledges this editor's changes (asked for in the HELLO).
+    private boolean welcomed; // Whether the server's WELCOME has arrived.
+    private long sent; // The number of this editor's last MOVE, RECOLOR or DELETE (on this connection).
+    private PendingChanges pending = new PendingChanges(); // This editor's changes not acknowledged yet.
+    private boolean resyncing; // Whether a fresh copy of the sketch is on its way (until the ACK it ends with).
 
     /**
      * Constructor - Establishes a connection and in/out pair.
      */
     public EditorCommunicator(String serverIP, Editor editor)
     {
+        this(serverIP, editor, true, "");
+    }
+
+    /**
+     * Constructor - Establishes a connection and in/out pair.
+     *
+     * @param binary Whether to switch to the binary protocol, if the server offers it.
+     * @param room The room to join ("" for the default room).
+     */
+    public EditorCommunicator(String serverIP, Editor editor, boolean binary, String room)
+    {
+        this.serverIP = serverIP;
         this.editor = editor;
+        this.binary = binary;
+        this.room = room;
         System.out.println("Connecting To " + serverIP + "...");
 
         try
         {
-            Socket socket = new Socket(serverIP, 4242);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            connect();
             System.out.println("...Connected");
         }
 
@@ -39,203 +75,474 @@ public class EditorCommunicator extends Thread
     }
 
     /**
-     * Sends a message to the server.
+     * Sends a message to the server, in whichever format the handshake settled on.
      */
-    public void send(String msg)
+    public synchronized void send(String msg)
     {
-        out.println(msg);
+        try
+        {
+            out.write(new WireMessage(msg).encode(binaryOut));
+            out.flush();
+        }
+
+        catch (IOException e)
+        {
+            System.err.println("Could Not Send: " + e.getMessage());
+        }
     }
 
     /**
-     * Keeps listening for and handling (your code) messages from the server.
+     * Moves a shape, in the editor's sketch straight away (if the server acknowledges this editor's changes, and no
+     * fresh copy of the sketch is on its way, when it waits to be applied on top of the copy), and on the server. A
+     * move made while waiting for the server's WELCOME is held back until it arrives.
      */
-    public void run()
+    public synchronized void move(int ID, int dx, int dy)
     {
-        try
+        if (acking && !welcomed)
         {
-            // Keep getting and handling messages from the client.
-            String message;
-            while ((message = in.readLine()) != null)
-            {
-                System.out.println("Received: " + message);
-
-                String[] messageParts = message.split(" ");
-                if (messageParts.length < 2)
-                    System.err.println("Invalid message from server.");
+            pending.hold(() -> move(ID, dx, dy));
+            return;
+        }
 
-                // The first element of the message parts is the command to use.
-                String command = messageParts[0];
+        if (acking)
+        {
+            java.awt.Rectangle before = editor.getSketch().getBounds(ID);
+            sent += 1;
+            pending.move(sent, ID, dx, dy);
 
-                if (command.equals("ADD"))
-                    handleAdd(message);
+            if (!resyncing)
+            {
+                editor.getSketch().moveShape(ID, dx, dy);
+                changedLocally(ID, before);
+                changedLocally(ID, editor.getSketch().getBounds(ID));
+            }
+        }
 
-                if (command.equals("MOVE"))
-                    handleMove(message);
+        send("MOVE " + ID + " " + dx + " " + dy);
+    }
 
-                if (command.equals("RECOLOR"))
-                    handleRecolor(message);
+    /**
+     * Recolors a shape, in the editor's sketch straight away (if the server acknowledges this editor's changes), and
+     * on the server (once the WELCOME has arrived).
+     */
+    public synchronized void recolor(int ID, Color color)
+    {
+        if (acking && !welcomed)
+        {
+            pending.hold(() -> recolor(ID, color));
+            return;
+        }
 
-                if (command.equals("DELETE"))
-                    handleDelete(message);
+        if (acking)
+        {
+            sent += 1;
+            pending.recolor(sent, ID, color);
 
-                if (command.equals("ADD_ID"))
-                    handleAddID(message);
+            if (!resyncing)
+            {
+                editor.getSketch().recolorShape(ID, color);
+                changedLocally(ID, editor.getSketch().getBounds(ID));
             }
         }
 
-        catch (IOException e)
+        send("RECOLOR " + ID + " " + color.getRGB());
+    }
+
+    /**
+     * Deletes a shape, in the editor's sketch straight away (if the server acknowledges this editor's changes), and on
+     * the server (once the WELCOME has arrived).
+     */
+    public synchronized void delete(int ID)
+    {
+        if (acking && !welcomed)
         {
-            e.printStackTrace();
+            pending.hold(() -> delete(ID));
+            return;
         }
 
-        finally
+        if (acking)
         {
-            System.out.println("Server Hung Up");
+            java.awt.Rectangle before = editor.getSketch().getBounds(ID);
+            sent += 1;
+            pending.delete(sent, ID);
+
+            if (!resyncing)
+            {
+                editor.getSketch().deleteShape(ID);
+                changedLocally(ID, before);
+            }
         }
+
+        send("DELETE " + ID);
     }
 
     /**
-     * Helper Function - Adds a given shape in the client sketches.
-     *
-     * @param message The message to pass through the method.
+     * Keeps listening for and handling (your code) messages from the server, reconnecting whenever the connection
+     * drops.
      */
-    public synchronized void handleAdd(String message)
+    public void run()
     {
-        // Ensuring the input is appropriate.
-        String[] messageParts = message.split(" ");
-        if (messageParts.length < 7)
-            System.err.println("Invalid message from server.");
+        while (true)
+        {
+            try
+            {
+                // Keep getting and handling messages from the server.
+                while (binaryIn ? in.readFrame() : in.readLine())
+                {
+                    // System.out.println("Received: " + in.getText());
+
+                    if (!binaryIn && in.startsWith("HELLO "))
+                    {
+                        // Answering the server's HELLO, and then switching to binary after it if asked for.
+                        handleHello(in.getText());
+                        continue;
+                    }
+
+                    if (!binaryIn && in.startsWith("WELCOME "))
+                    {
+                        handleWelcome(in.getText());
+                        continue;
+                    }
+
+                    if (skipping)
+                        continue;
+
+                    try
+                    {
+                        if (binaryIn)
+                            decoder.decodeFrame(in.getBytes(), 0, in.getLength(), this);
+                        else
+                            decoder.decodeText(in.getBytes(), 0, in.getLength(), this);
+                    }
+
+                    catch (MalformedMessageException e)
+                    {
+                        System.err.println("Invalid message from server: " + e.getMessage());
+                    }
+                }
+            }
 
-        Shape shape = null;
+            catch (IOException e)
+            {
+                System.err.println(e.getMessage());
+            }
 
-        // Creating a new shape based on the shape type.
-        if (messageParts[1].equals("Ellipse"))
-            shape = new Ellipse(Integer.parseInt(messageParts[2]), Integer.parseInt(messageParts[3]),
-                    Integer.parseInt(messageParts[4]), Integer.parseInt(messageParts[5]), new Color(Integer.parseInt(messageParts[6])));
+            System.out.println("Server Hung Up");
+            reconnect();
+        }
+    }
 
-        if (messageParts[1].equals("Rectangle"))
-            shape = new Rectangle(Integer.parseInt(messageParts[2]), Integer.parseInt(messageParts[3]),
-                    Integer.parseInt(messageParts[4]), Integer.parseInt(messageParts[5]), new Color(Integer.parseInt(messageParts[6])));
+    /**
+     * Helper Method - Opens a connection to the server, starting out on text each way until the handshake. Any
+     * changes still pending may or may not have reached the server, so the editor asks for a fresh copy of the sketch
+     * rather than picking up where it left off.
+     */
+    private void connect() throws IOException
+    {
+        int colon = serverIP.lastIndexOf(':');
+        Socket socket = colon < 0 ? new Socket(serverIP, 4242)
+                : new Socket(serverIP.substring(0, colon), Integer.parseInt(serverIP.substring(colon + 1)));
+        in = new WireReader(socket.getInputStream());
+        binaryIn = false;
 
-        if (messageParts[1].equals("Segment"))
-            shape = new Segment(Integer.parseInt(messageParts[2]), Integer.parseInt(messageParts[3]),
-                    Integer.parseInt(messageParts[4]), Integer.parseInt(messageParts[5]), new Color(Integer.parseInt(messageParts[6])));
+        synchronized (this)
+        {
+            out = new BufferedOutputStream(socket.getOutputStream());
+            binaryOut = false;
+            batchRemaining = 0;
+            skipping = false;
+
+            if (!pending.isEmpty())
+                seq = -1;
+
+            pending.clear();
+            acking = false;
+            welcomed = false;
+            sent = 0;
+        }
+    }
 
-        if (messageParts[1].equals("Polyline"))
+    /**
+     * Helper Method - Keeps trying to reconnect, waiting a little longer after each failure (up to 5 seconds). What the
+     * editor sends meanwhile is lost (along with its changes still pending, once the fresh copy of the sketch
+     * arrives).
+     */
+    private void reconnect()
+    {
+        for (int wait = 250; true; wait = Math.min(2 * wait, 5000))
         {
-            shape = new Polyline(Integer.parseInt(messageParts[2]), Integer.parseInt(messageParts[3]), new Color(Integer.parseInt(messageParts[messageParts.length - 1])));
+            try
+            {
+                Thread.sleep(wait);
+                System.out.println("Reconnecting To " + serverIP + "...");
+                connect();
+                System.out.println("...Reconnected");
+                return;
+            }
 
-            for (int i = 4; i < messageParts.length - 1; i += 2)
+            catch (IOException e)
             {
-                ((Polyline) shape).addPoint(Integer.parseInt(messageParts[i]), Integer.parseInt(messageParts[i + 1]));
+                System.err.println("Could Not Reconnect");
             }
-        }
 
-        // Checking to make sure the shape is present.
-        if (shape != null)
-        {
-            // Adding the shape to the editor sketch and repainting the editor.
-            editor.getSketch().addShape(shape);
-            editor.repaint();
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
         }
     }
 
     /**
-     * Helper Function - Moves a given shape in the client sketches.
-     *
-     * @param message The message to pass through the method.
+     * Helper Function - Adds a given shape in the client sketches.
      */
-    public synchronized void handleMove(String message)
+    @Override
+    public synchronized void handleAdd(Shape shape)
     {
-        // Ensuring the input is appropriate.
-        String[] messageParts = message.split(" ");
-        if (messageParts.length < 4)
-            System.err.println("Invalid message from server.");
+        // Adding the shape to the editor sketch and repainting where it is.
+        editor.getSketch().addShape(shape);
+        changed(-1, shape.getBounds());
+        applied();
+    }
 
-        // Modifying the editor sketch and repainting the editor.
-        editor.getSketch().moveShape(Integer.parseInt(messageParts[1]), Integer.parseInt(messageParts[2]), Integer.parseInt(messageParts[3]));
-        editor.repaint();
+    /**
+     * Helper Function - Moves a given shape in the client sketches.
+     */
+    @Override
+    public synchronized void handleMove(int ID, int dx, int dy)
+    {
+        // Modifying the editor sketch and repainting where the shape was and where it is now.
+        java.awt.Rectangle before = editor.getSketch().getBounds(ID);
+        rebase(ID, () -> editor.getSketch().moveShape(ID, dx, dy));
+        changed(ID, before);
+        changed(ID, editor.getSketch().getBounds(ID));
+        applied();
     }
 
     /**
      * Helper Function - Recolors a given shape in the client sketches.
-     *
-     * @param message The message to pass through the method.
      */
-    public synchronized void handleRecolor(String message)
+    @Override
+    public synchronized void handleRecolor(int ID, Color color)
     {
-        // Ensuring the input is appropriate.
-        String[] messageParts = message.split(" ");
-        if (messageParts.length < 3)
-            System.err.println("Invalid message from server.");
-
-        // Modifying the editor sketch and repainting the editor.
-        editor.getSketch().recolorShape(Integer.parseInt(messageParts[1]), new Color(Integer.parseInt(messageParts[2])));
-        editor.repaint();
+        // Modifying the editor sketch and repainting where the shape is.
+        rebase(ID, () -> editor.getSketch().recolorShape(ID, color));
+        changed(ID, editor.getSketch().getBounds(ID));
+        applied();
     }
 
     /**
      * Helper Function - Deletes a given shape in the client sketches.
-     *
-     * @param message The message to pass through the method.
      */
-    public synchronized void handleDelete(String message)
+    @Override
+    public synchronized void handleDelete(int ID)
     {
-        // Ensuring the input is appropriate.
-        String[] messageParts = message.split(" ");
-        if (messageParts.length < 2)
-            System.err.println("Invalid message from server.");
-
-        // Modifying the editor sketch and repainting the editor.
-        editor.getSketch().deleteShape(Integer.parseInt(messageParts[1]));
-        editor.repaint();
-
+        // Modifying the editor sketch and repainting where the shape was.
+        java.awt.Rectangle before = editor.getSketch().getBounds(ID);
+        rebase(ID, () -> editor.getSketch().deleteShape(ID));
+        changed(ID, before);
+        applied();
     }
 
     /**
      * Helper Function - Adds a given shape in the client sketch, with an ID index.
      * Specifically used when new editors are introduced to the server, to initialize the editor.
-     *
-     * @param message The message to pass through the method.
      */
-    public synchronized void handleAddID(String message)
+    @Override
+    public synchronized void handleAddID(int ID, Shape shape)
     {
-        // Ensuring the input is appropriate.
-        String[] messageParts = message.split(" ");
-        if (messageParts.length < 8)
-            System.err.println("Invalid message from server.");
+        // Adding the shape to the editor sketch (in place of any it replaces) and repainting where they are.
+        java.awt.Rectangle before = editor.getSketch().getBounds(ID);
+        rebase(ID, () -> editor.getSketch().addShape(ID, shape));
+        changed(ID, before);
+        changed(ID, editor.getSketch().getBounds(ID));
+        applied();
+    }
 
-        Shape shape = null;
+    /**
+     * Helper Function - Adds points to a stroke (still being drawn by someone) in the client sketch.
+     */
+    @Override
+    public synchronized void handleAppendPointsID(int ID, int[] coordinates, int count)
+    {
+        // Modifying the editor sketch and repainting where the stroke is now (which takes in where it was).
+        rebase(ID, () -> editor.getSketch().appendPoints(ID, coordinates, count));
+        changed(ID, editor.getSketch().getBounds(ID));
+        applied();
+    }
 
-        // Creating a new shape based on the shape type.
-        if (messageParts[2].equals("Ellipse"))
-            shape = new Ellipse(Integer.parseInt(messageParts[3]), Integer.parseInt(messageParts[4]),
-                    Integer.parseInt(messageParts[5]), Integer.parseInt(messageParts[6]), new Color(Integer.parseInt(messageParts[7])));
+    /**
+     * Helper Function - Clears the client sketch, as the server is about to send a fresh copy of it (after this editor
+     * fell too far behind to be sent everything it missed).
+     */
+    @Override
+    public synchronized void handleReset()
+    {
+        // Clearing the editor sketch, and repainting all of it (the copy's changes aren't numbered until it is over).
+        editor.getSketch().clear();
+        editor.sketchChanged(-1, null);
+        dirtyAll = true;
+        seq = -1;
+        resyncing = acking;
+        repaintChanged();
+    }
+
+    /**
+     * Helper Function - Starts a batch of messages, holding off repainting until all of them have been applied.
+     */
+    @Override
+    public synchronized void handleBatch(int count)
+    {
+        batchRemaining = count;
+    }
 
-        if (messageParts[2].equals("Rectangle"))
-            shape = new Rectangle(Integer.parseInt(messageParts[3]), Integer.parseInt(messageParts[4]),
-                    Integer.parseInt(messageParts[5]), Integer.parseInt(messageParts[6]), new Color(Integer.parseInt(messageParts[7])));
+    /**
+     * Helper Function - Notes the number of the last change the server has sent (after a copy of the sketch, say).
+     */
+    @Override
+    public synchronized void handleSeq(long seq)
+    {
+        this.seq = seq;
+    }
 
-        if (messageParts[2].equals("Segment"))
-            shape = new Segment(Integer.parseInt(messageParts[3]), Integer.parseInt(messageParts[4]),
-                    Integer.parseInt(messageParts[5]), Integer.parseInt(messageParts[6]), new Color(Integer.parseInt(messageParts[7])));
+    /**
+     * Helper Function - Notes that this editor's changes up to one have been applied by the server (which sends the
+     * ACK in place of the last of them, so it counts as that change). An ACK at the end of a fresh copy of the sketch
+     * says which of them the copy includes, and the rest are applied again on top of it.
+     */
+    @Override
+    public synchronized void handleAck(long op)
+    {
+        pending.acknowledge(op);
 
-        if (messageParts[2].equals("Polyline"))
+        if (resyncing)
         {
-            shape = new Polyline(Integer.parseInt(messageParts[3]), Integer.parseInt(messageParts[4]), new Color(Integer.parseInt(messageParts[messageParts.length - 1])));
-
-            for (int i = 5; i < messageParts.length - 1; i += 2)
-            {
-                ((Polyline) shape).addPoint(Integer.parseInt(messageParts[i]), Integer.parseInt(messageParts[i + 1]));
-            }
+            resyncing = false;
+            pending.reapply(editor.getSketch());
+            editor.sketchChanged(-1, null);
+            dirtyAll = true;
         }
 
-        // Checking to make sure the shape is present.
-        if (shape != null)
+        applied();
+    }
+
+    /**
+     * Helper Method - Applies a change from the server to a shape, under this editor's pending changes to it (unless a
+     * fresh copy of the sketch is arriving, which they are applied on top of once it has all arrived).
+     */
+    private void rebase(int ID, Runnable change)
+    {
+        if (resyncing)
+            change.run();
+        else
+            pending.rebase(editor.getSketch(), ID, change);
+    }
+
+    /**
+     * Helper Method - Counts a change as applied, and repaints what it changed.
+     */
+    private void applied()
+    {
+        if (seq >= 0)
+            seq += 1;
+
+        repaintChanged();
+    }
+
+    /**
+     * Helper Method - Notes an area of the editor changed by a message (once the change has been made), which needs
+     * its tiles redrawn and repainting.
+     *
+     * @param ID The ID of the shape that changed (-1 for a new one).
+     * @param area The area (null if there is nothing there, such as a shape that doesn't exist).
+     */
+    private void changed(int ID, java.awt.Rectangle area)
+    {
+        if (area == null)
+            return;
+
+        editor.sketchChanged(ID, area);
+        dirty = dirty == null ? new java.awt.Rectangle(area) : dirty.union(area);
+    }
+
+    /**
+     * Helper Method - Notes an area of the editor changed by one of its own changes, and repaints it straight away
+     * (apart from any batch of changes from the server in progress).
+     *
+     * @param ID The ID of the shape that changed.
+     * @param area The area (null if there is nothing there).
+     */
+    private void changedLocally(int ID, java.awt.Rectangle area)
+    {
+        if (area == null)
+            return;
+
+        editor.sketchChanged(ID, area);
+        editor.repaintArea(area);
+    }
+
+    /**
+     * Helper Method - Repaints the areas changed by a message, or (if the message is part of a batch) by the whole
+     * batch once it is over.
+     */
+    private void repaintChanged()
+    {
+        if (batchRemaining > 0)
         {
-            // Adding the shape to the editor sketch and repainting the editor.
-            editor.getSketch().addShape(Integer.parseInt(messageParts[1]), shape);
-            editor.repaint();
+            batchRemaining -= 1;
+            if (batchRemaining > 0)
+                return;
         }
+
+        if (dirtyAll)
+            editor.repaintArea(null);
+        else if (dirty != null)
+            editor.repaintArea(dirty);
+
+        dirty = null;
+        dirtyAll = false;
+    }
+
+    /**
+     * Helper Function - Answers the server's HELLO, asking for the binary protocol if the server offers it (and this
+     * editor wants it), naming the room to join, and asking for the changes to be numbered (if the server offers it).
+     * After a reconnect, it asks to pick up from the last change applied, and ignores the server's copy of the sketch
+     * (which the server sends before it has had the answer) until the WELCOME. It also asks for its changes to be
+     * acknowledged (if the server offers it), and holds back any it makes from then until the WELCOME (which says
+     * whether they are acknowledged after all), so that the server numbers exactly the same changes as the editor.
+     * Everything sent after that answer is binary (if asked for).
+     *
+     * @param hello The server's HELLO line.
+     */
+    public synchronized void handleHello(String hello)
+    {
+        boolean useBinary = binary && Handshake.hasBinary(hello);
+
+        String resume = null;
+        if (Handshake.getResume(hello) != null)
+            resume = epoch != null && seq >= 0 ? epoch + ":" + seq : "";
+
+        skipping = resume != null && !resume.isEmpty();
+        acking = Handshake.hasAck(hello);
+        send(Handshake.hello(useBinary, room, resume, acking));
+        binaryOut = useBinary;
+    }
+
+    /**
+     * Helper Function - Takes in the server's WELCOME, and makes the changes held back until it arrived. The server
+     * sends binary right after it, if that was agreed (and picks up from seq, or starts over with a RESET).
+     *
+     * @param welcome The server's WELCOME line.
+     */
+    private synchronized void handleWelcome(String welcome)
+    {
+        binaryIn = Handshake.hasBinary(welcome);
+        String resume = Handshake.getResume(welcome);
+        epoch = resume == null || resume.isEmpty() ? null : resume;
+        skipping = false;
+        acking = Handshake.hasAck(welcome);
+        welcomed = true;
+        resyncing = false;
+        pending.release();
     }
 }
@@ -1,5 +1,6 @@
 import java.awt.Color;
 import java.awt.Graphics;
+import java.io.ByteArrayOutputStream;
 
 /**
  * An Ellipse-Shaped Shape
@@ -12,6 +13,7 @@ import java.awt.Graphics;
 public class Ellipse implements Shape
 {
     private int x1, y1, x2, y2; // Upper left and lower right.
+    private java.awt.Rectangle bounds; // Cached bounds (null until asked for, or after a change).
     private Color color;
 
     /**
@@ -60,6 +62,7 @@ public class Ellipse implements Shape
         this.y1 = Math.min(y1, y2);
         this.x2 = Math.max(x1, x2);
         this.y2 = Math.max(y1, y2);
+        bounds = null;
     }
 
     @Override
@@ -69,6 +72,7 @@ public class Ellipse implements Shape
         y1 += dy;
         x2 += dx;
         y2 += dy;
+        bounds = null;
     }
 
     @Override
@@ -82,6 +86,15 @@ public class Ellipse implements Shape
         return Math.pow(dx / a, 2) + Math.pow(dy / b, 2) <= 1;
     }
 
+    @Override
+    public java.awt.Rectangle getBounds()
+    {
+        if (bounds == null)
+            bounds = new java.awt.Rectangle(x1, y1, x2 - x1 + 1, y2 - y1 + 1);
+
+        return bounds;
+    }
+
     @Override
     public Color getColor()
     {
@@ -94,6 +107,12 @@ public class Ellipse implements Shape
         this.color = color;
     }
 
+    @Override
+    public Ellipse copy()
+    {
+        return new Ellipse(x1, y1, x2, y2, color);
+    }
+
     @Override
     public void draw(Graphics g)
     {
@@ -101,9 +120,24 @@ public class Ellipse implements Shape
         g.fillOval(x1, y1, x2 - x1, y2 - y1);
     }
 
+    @Override
+    public StringBuilder appendTo(StringBuilder out)
+    {
+        return out.append("Ellipse ").append(x1).append(' ').append(y1).append(' ').append(x2).append(' ').append(y2)
+                .append(' ').append(color.getRGB());
+    }
+
+    @Override
+    public void writeTo(ByteArrayOutputStream out)
+    {
+        out.write(ShapeType.ELLIPSE.code);
+        BinaryProtocol.writeCoordinates(out, new int[] {x1, y1, x2, y2}, 4);
+        BinaryProtocol.writeInt(out, color.getRGB());
+    }
+
     @Override
     public String toString()
     {
-        return "Ellipse " + x1 + " " + y1 + " " + x2 + " " + y2 + " " + color.getRGB();
+        return appendTo(new StringBuilder()).toString();
     }
 }
@@ -0,0 +1,194 @@
+/**
+ * Handshake - Picks the wire format for a connection. Everything starts out as text lines. On connecting, the server
+ * sends "HELLO <version> <capabilities>"; an editor that wants one of the capabilities answers with its own
+ * "HELLO <version> <capabilities>" and switches its output right after that line, and the server answers with
+ * "WELCOME <version> <capabilities>" and switches its output right after that line. Older editors don't know HELLO,
+ * so they ignore it, never answer, and stay on text.
+ * An editor can also pick the sketch (room) it joins, with a "room=<name>" capability in its HELLO; without one, it is
+ * in the server's default room.
+ * With the resume capability, the server numbers the changes it sends (see SEQ), and its WELCOME says which run of the
+ * room the numbers belong to ("resume=<epoch>"). An editor that reconnects asks for "resume=<epoch>:<seq>", the last
+ * change it has, and ignores everything before the WELCOME; after it, the server sends either just the changes since,
+ * or (if it no longer has them all) a RESET and a fresh copy of the sketch.
+ * With the ack capability, the editor applies its own MOVEs, RECOLORs and DELETEs to its sketch straight away, and the
+ * server sends it an ACK in place of each of those changes (rather than the change itself), so it knows which of them
+ * the sketch it is sent already includes (see PendingChanges). A copy of the sketch ends with an ACK as well.
+ * Another server following this one (see SketchServerUpstream) connects like an editor, on text, asking for the resume
+ * and follower capabilities. It is sent every change like any editor, and sends the messages of its own clients as
+ * "FROM <client> <message>" (and "LEFT <client>" once one has gone), each client with a session of its own here (see
+ * SketchServerRelay).
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public class Handshake
+{
+    public static final int VERSION = 2; // Version 1 was the original text-only protocol.
+    public static final String BINARY = "binary"; // Length-prefixed binary frames (see BinaryProtocol).
+    public static final String ROOM = "room="; // The room to join (editor HELLO only), followed by its name.
+    public static final String RESUME = "resume"; // Numbered changes, and picking up after a dropped connection.
+    public static final String ACK = "ack"; // ACKs in place of the editor's own changes (which it applies itself).
+    public static final String FOLLOWER = "follower"; // A follower server, relaying its clients' messages.
+
+    /**
+     * The HELLO line, offering (from the server) or asking for (from the editor) the given capabilities.
+     *
+     * @param binary Whether to include the binary capability.
+     */
+    public static String hello(boolean binary)
+    {
+        return "HELLO " + VERSION + (binary ? " " + BINARY : "");
+    }
+
+    /**
+     * The HELLO line from the server, offering the binary capability (if asked to), and the resume and ack
+     * capabilities.
+     *
+     * @param binary Whether to include the binary capability.
+     */
+    public static String offer(boolean binary)
+    {
+        return hello(binary) + " " + RESUME + " " + ACK;
+    }
+
+    /**
+     * The HELLO line from an editor, asking for the given capabilities and joining a room.
+     *
+     * @param binary Whether to include the binary capability.
+     * @param room The room to join ("" for the default room).
+     * @param resume Null to leave out the resume capability, "" to ask for it, or "<epoch>:<seq>" to pick up where a
+     *               dropped connection left off.
+     * @param ack Whether to include the ack capability.
+     */
+    public static String hello(boolean binary, String room, String resume, boolean ack)
+    {
+        return hello(binary) + (room.isEmpty() ? "" : " " + ROOM + room)
+                + (resume == null ? "" : " " + RESUME + (resume.isEmpty() ? "" : "=" + resume))
+                + (ack ? " " + ACK : "");
+    }
+
+    /**
+     * The HELLO line from a follower server, joining a room and picking up where it left off (on text, without ACKs).
+     *
+     * @param room The room to follow ("" for the default room).
+     * @param resume "<epoch>:<seq>", the last change the follower has (seq -1 for none).
+     */
+    public static String follow(String room, String resume)
+    {
+        return hello(false, room, resume, false) + " " + FOLLOWER;
+    }
+
+    /**
+     * The WELCOME line, confirming the capabilities the server will use from here on.
+     *
+     * @param binary Whether the binary capability was agreed.
+     */
+    public static String welcome(boolean binary)
+    {
+        return "WELCOME " + VERSION + (binary ? " " + BINARY : "");
+    }
+
+    /**
+     * The WELCOME line, confirming the capabilities the server will use from here on.
+     *
+     * @param binary Whether the binary capability was agreed.
+     * @param epoch The run of the room the changes will be numbered in, if the resume capability was agreed (-1 if
+     *              not).
+     * @param ack Whether the ack capability was agreed.
+     */
+    public static String welcome(boolean binary, long epoch, boolean ack)
+    {
+        return welcome(binary) + (epoch < 0 ? "" : " " + RESUME + "=" + epoch) + (ack ? " " + ACK : "");
+    }
+
+    /**
+     * Whether a line is a HELLO (as opposed to an ordinary message).
+     */
+    public static boolean isHello(String line)
+    {
+        return line.startsWith("HELLO ");
+    }
+
+    /**
+     * Whether a line is a WELCOME (as opposed to an ordinary message).
+     */
+    public static boolean isWelcome(String line)
+    {
+        return line.startsWith("WELCOME ");
+    }
+
+    /**
+     * Whether a HELLO or WELCOME line includes the binary capability.
+     */
+    public static boolean hasBinary(String line)
+    {
+        return has(line, BINARY);
+    }
+
+    /**
+     * Whether a HELLO or WELCOME line includes the ack capability.
+     */
+    public static boolean hasAck(String line)
+    {
+        return has(line, ACK);
+    }
+
+    /**
+     * Whether a HELLO line is from a follower server.
+     */
+    public static boolean hasFollower(String line)
+    {
+        return has(line, FOLLOWER);
+    }
+
+    /**
+     * The room a HELLO line asks to join ("" for the default room, if it doesn't name one).
+     */
+    public static String getRoom(String line)
+    {
+        String[] parts = line.split(" ");
+
+        for (int i = 2; i < parts.length; i += 1)
+        {
+            if (parts[i].startsWith(ROOM))
+                return parts[i].substring(ROOM.length());
+        }
+
+        return "";
+    }
+
+    /**
+     * The resume capability in a HELLO or WELCOME line: null if it isn't there, "" if it is there on its own, or
+     * whatever follows "resume=" (the epoch and last change, or just the epoch).
+     */
+    public static String getResume(String line)
+    {
+        String[] parts = line.split(" ");
+
+        for (int i = 2; i < parts.length; i += 1)
+        {
+            if (parts[i].equals(RESUME))
+                return "";
+
+            if (parts[i].startsWith(RESUME + "="))
+                return parts[i].substring(RESUME.length() + 1);
+        }
+
+        return null;
+    }
+
+    /**
+     * Helper Method - Whether a HELLO or WELCOME line includes a capability (one without a value).
+     */
+    private static boolean has(String line, String capability)
+    {
+        String[] parts = line.split(" ");
+
+        for (int i = 2; i < parts.length; i += 1)
+        {
+            if (parts[i].equals(capability))
+                return true;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,15 @@
+/**
+ * Malformed Message Exception - Thrown when a message (text or binary) can't be decoded, or isn't one the receiving end
+ * accepts. The message is rejected as a whole; nothing in it is applied.
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public class MalformedMessageException extends IllegalArgumentException
+{
+    private static final long serialVersionUID = 1L;
+
+    public MalformedMessageException(String message)
+    {
+        super(message);
+    }
+}
@@ -0,0 +1,371 @@
+import java.awt.Color;
+
+/**
+ * Message Decoder - Decodes messages, text lines and binary frames alike, straight from the bytes they arrived in. The
+ * text is tokenized in place (no substrings, no split arrays, no Integer.parseInt), the operation is looked up in the
+ * Operation registry, and the shape (if any) in the ShapeType registry. Each connection has its own decoder, which
+ * reuses its scratch space from message to message, so decoding allocates nothing beyond the shapes and colors it
+ * hands to the handler.
+ * Anything malformed (an unknown command, a missing, extra or non-numeric field, the wrong number of coordinates...)
+ * is rejected with a MalformedMessageException before any of it reaches the handler.
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public class MessageDecoder
+{
+    private byte[] bytes; // The message being decoded.
+    private int position, end; // The next byte to read, and the end of the message.
+    private boolean binary; // Whether the message is a binary frame (rather than a text line).
+    private int[] coordinates = new int[64]; // Scratch space for shape coordinates, grown as needed.
+
+    /**
+     * Decodes a text line (without its line ending) and passes the operation on to the handler.
+     *
+     * @throws MalformedMessageException If the line is malformed.
+     */
+    public void decodeText(byte[] bytes, int offset, int length, MessageHandler handler)
+    {
+        start(bytes, offset, length, false);
+
+        int tokenLength = nextToken();
+        Operation operation = Operation.forCommand(bytes, position - tokenLength, tokenLength);
+        if (operation == null)
+            throw new MalformedMessageException("Unknown command");
+
+        operation.decode(this, handler);
+    }
+
+    /**
+     * Decodes a binary frame (without its length) and passes the operation on to the handler.
+     *
+     * @throws MalformedMessageException If the frame is malformed.
+     */
+    public void decodeFrame(byte[] bytes, int offset, int length, MessageHandler handler)
+    {
+        start(bytes, offset, length, true);
+
+        Operation operation = Operation.forOpcode(readByte());
+        if (operation == null)
+            throw new MalformedMessageException("Unknown opcode");
+
+        operation.decode(this, handler);
+    }
+
+    /**
+     * Reads a shape ID.
+     */
+    public int readID()
+    {
+        int ID = binary ? readVarint() : readInt();
+        if (ID < 0)
+            throw new MalformedMessageException("Negative ID");
+
+        return ID;
+    }
+
+    /**
+     * Reads a count (of the messages in a batch, for instance).
+     */
+    public int readCount()
+    {
+        int count = binary ? readVarint() : readInt();
+        if (count < 0)
+            throw new MalformedMessageException("Negative count");
+
+        return count;
+    }
+
+    /**
+     * Reads a change's sequence number (which may be -1, for not known).
+     */
+    public long readSequence()
+    {
+        if (binary)
+        {
+            long value = readVarlong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        // Up to 18 digits, so the value can't overflow.
+        int length = nextToken(), start = position - length;
+        boolean negative = bytes[start] == '-';
+        int digits = negative ? length - 1 : length;
+        if (digits == 0 || digits > 18)
+            throw new MalformedMessageException("Not a number");
+
+        long value = 0;
+        for (int i = negative ? start + 1 : start; i < position; i += 1)
+        {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9)
+                throw new MalformedMessageException("Not a number");
+
+            value = value * 10 + digit;
+        }
+
+        return negative ? -value : value;
+    }
+
+    /**
+     * Reads a (signed) coordinate.
+     */
+    public int readCoordinate()
+    {
+        return binary ? readSigned() : readInt();
+    }
+
+    /**
+     * Reads a run of coordinates (x1, y1, x2, y2...): in text, the rest of the fields; in binary, a count and then the
+     * coordinates, each relative to the one two places before.
+     *
+     * @return The number of coordinates, which are then in getCoordinates.
+     */
+    public int readCoordinates()
+    {
+        int count = binary ? readVarint() : countTokens();
+        if (count < 2 || count % 2 != 0 || count > end - position)
+            throw new MalformedMessageException("Wrong number of coordinates");
+
+        readCoordinates(count);
+        return count;
+    }
+
+    /**
+     * The coordinates last read (by readCoordinates), valid until the next message is decoded.
+     */
+    public int[] getCoordinates()
+    {
+        return coordinates;
+    }
+
+    /**
+     * Reads a (signed) distance to move by.
+     */
+    public int readDelta()
+    {
+        return binary ? readSigned() : readInt();
+    }
+
+    /**
+     * Reads a color.
+     */
+    public Color readColor()
+    {
+        return new Color(binary ? readFixedInt() : readInt());
+    }
+
+    /**
+     * Reads a shape: its type, its coordinates, and its color.
+     */
+    public Shape readShape()
+    {
+        ShapeType type;
+        int count;
+
+        if (binary)
+        {
+            type = ShapeType.forCode(readByte());
+            count = readVarint();
+        }
+
+        else
+        {
+            int tokenLength = nextToken();
+            type = ShapeType.forName(bytes, position - tokenLength, tokenLength);
+            count = countTokens() - 1; // The last one is the color.
+        }
+
+        if (type == null)
+            throw new MalformedMessageException("Unknown shape type");
+
+        if (!type.accepts(count) || count > end - position)
+            throw new MalformedMessageException("Wrong number of coordinates for " + type.typeName);
+
+        readCoordinates(count);
+        return type.create(coordinates, count, readColor());
+    }
+
+    /**
+     * Helper Method - Reads count coordinates into the scratch space (growing it if need be).
+     */
+    private void readCoordinates(int count)
+    {
+        if (coordinates.length < count)
+            coordinates = new int[Math.max(count, coordinates.length * 2)];
+
+        // Binary coordinates are each relative to the one two places before (the same axis of the previous point).
+        for (int i = 0; i < count; i += 1)
+            coordinates[i] = binary ? readSigned() + (i >= 2 ? coordinates[i - 2] : 0) : readInt();
+    }
+
+    /**
+     * Helper Method - Sets up to decode a new message.
+     */
+    private void start(byte[] bytes, int offset, int length, boolean binary)
+    {
+        this.bytes = bytes;
+        this.binary = binary;
+        position = offset;
+        end = offset + length;
+    }
+
+    /**
+     * Makes sure all of the message has been read. Operations call this after reading their fields and before handing
+     * them on, so that a bad message has no effect at all.
+     */
+    public void finish()
+    {
+        if (!binary)
+        {
+            while (position < end && bytes[position] == ' ')
+                position += 1;
+        }
+
+        if (position != end)
+            throw new MalformedMessageException("Unexpected data at the end of the message");
+    }
+
+    // Text Fields
+
+    /**
+     * Helper Method - Skips to the next token (after any spaces), and past it.
+     *
+     * @return The token's length (it ends at the new position).
+     */
+    private int nextToken()
+    {
+        while (position < end && bytes[position] == ' ')
+            position += 1;
+
+        int tokenStart = position;
+        while (position < end && bytes[position] != ' ')
+            position += 1;
+
+        if (position == tokenStart)
+            throw new MalformedMessageException("Missing field");
+
+        return position - tokenStart;
+    }
+
+    /**
+     * Helper Method - Counts the tokens left in the line, without moving past them.
+     */
+    private int countTokens()
+    {
+        int count = 0;
+        for (int i = position; i < end; i += 1)
+        {
+            if (bytes[i] != ' ' && (i == position || bytes[i - 1] == ' '))
+                count += 1;
+        }
+
+        return count;
+    }
+
+    /**
+     * Helper Method - Reads a decimal int token.
+     */
+    private int readInt()
+    {
+        while (position < end && bytes[position] == ' ')
+            position += 1;
+
+        boolean negative = position < end && bytes[position] == '-';
+        if (negative)
+            position += 1;
+
+        int digitsStart = position;
+        long value = 0;
+        while (position < end && bytes[position] != ' ')
+        {
+            int digit = bytes[position] - '0';
+            if (digit < 0 || digit > 9)
+                throw new MalformedMessageException("Not a number");
+
+            value = value * 10 + digit;
+            if (value > 1L + Integer.MAX_VALUE)
+                throw new MalformedMessageException("Number out of range");
+
+            position += 1;
+        }
+
+        if (position == digitsStart)
+            throw new MalformedMessageException("Missing field");
+
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE)
+            throw new MalformedMessageException("Number out of range");
+
+        return (int) value;
+    }
+
+    // Binary Fields
+
+    /**
+     * Helper Method - Reads one byte.
+     */
+    private int readByte()
+    {
+        if (position >= end)
+            throw new MalformedMessageException("Truncated frame");
+
+        int b = bytes[position];
+        position += 1;
+        return b;
+    }
+
+    /**
+     * Helper Method - Reads an unsigned varint (see BinaryProtocol).
+     */
+    private int readVarint()
+    {
+        int value = 0;
+
+        for (int shift = 0; shift < 35; shift += 7)
+        {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        throw new MalformedMessageException("Varint too long");
+    }
+
+    /**
+     * Helper Method - Reads an unsigned varint that may need more than 32 bits.
+     */
+    private long readVarlong()
+    {
+        long value = 0;
+
+        for (int shift = 0; shift < 70; shift += 7)
+        {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        throw new MalformedMessageException("Varint too long");
+    }
+
+    /**
+     * Helper Method - Reads a zigzag varint.
+     */
+    private int readSigned()
+    {
+        int value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Helper Method - Reads a 4-byte int, high byte first.
+     */
+    private int readFixedInt()
+    {
+        return (readByte() & 0xFF) << 24 | (readByte() & 0xFF) << 16 | (readByte() & 0xFF) << 8 | (readByte() & 0xFF);
+    }
+}
@@ -0,0 +1,123 @@
+import java.awt.Color;
+
+/**
+ * Message Handler - Receives the operations decoded from messages, whichever wire format (text or binary) they arrived
+ * in (see MessageDecoder). The server and the editor each handle the operations that may be sent to them; anything
+ * else is rejected as malformed.
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public interface MessageHandler
+{
+    /**
+     * ADD - A new shape, to be given the next ID.
+     */
+    public default void handleAdd(Shape shape)
+    {
+        throw new MalformedMessageException("Unexpected ADD");
+    }
+
+    /**
+     * ADD_ID - A shape with the ID it already has (part of a copy of the sketch).
+     */
+    public default void handleAddID(int ID, Shape shape)
+    {
+        throw new MalformedMessageException("Unexpected ADD_ID");
+    }
+
+    /**
+     * MOVE - Moves a shape by dx and dy.
+     */
+    public default void handleMove(int ID, int dx, int dy)
+    {
+        throw new MalformedMessageException("Unexpected MOVE");
+    }
+
+    /**
+     * RECOLOR - Gives a shape a new color.
+     */
+    public default void handleRecolor(int ID, Color color)
+    {
+        throw new MalformedMessageException("Unexpected RECOLOR");
+    }
+
+    /**
+     * DELETE - Removes a shape.
+     */
+    public default void handleDelete(int ID)
+    {
+        throw new MalformedMessageException("Unexpected DELETE");
+    }
+
+    /**
+     * RESET - Clears the sketch, ahead of a fresh copy of it.
+     */
+    public default void handleReset()
+    {
+        throw new MalformedMessageException("Unexpected RESET");
+    }
+
+    /**
+     * BATCH - The next count messages were applied together (during one server tick), and go together.
+     */
+    public default void handleBatch(int count)
+    {
+        throw new MalformedMessageException("Unexpected BATCH");
+    }
+
+    /**
+     * BEGIN_STROKE - Starts a freehand stroke (a Polyline) at a point, whose points follow as it is drawn.
+     */
+    public default void handleBeginStroke(int x, int y, Color color)
+    {
+        throw new MalformedMessageException("Unexpected BEGIN_STROKE");
+    }
+
+    /**
+     * APPEND_POINTS - More points for the stroke being drawn (by whoever sent it).
+     *
+     * @param coordinates The coordinates (x1, y1, x2, y2...), of which only the first count are used. Only valid until
+     *                    the next message is decoded.
+     */
+    public default void handleAppendPoints(int[] coordinates, int count)
+    {
+        throw new MalformedMessageException("Unexpected APPEND_POINTS");
+    }
+
+    /**
+     * APPEND_POINTS_ID - More points for a stroke in the sketch, with its ID.
+     *
+     * @param coordinates The coordinates (x1, y1, x2, y2...), of which only the first count are used. Only valid until
+     *                    the next message is decoded.
+     */
+    public default void handleAppendPointsID(int ID, int[] coordinates, int count)
+    {
+        throw new MalformedMessageException("Unexpected APPEND_POINTS_ID");
+    }
+
+    /**
+     * END_STROKE - Finishes the stroke being drawn (by whoever sent it).
+     */
+    public default void handleEndStroke()
+    {
+        throw new MalformedMessageException("Unexpected END_STROKE");
+    }
+
+    /**
+     * SEQ - The number of the last change the client now has (-1 if it has some changes only in part, until the next
+     * SEQ). Each change after it counts one more.
+     */
+    public default void handleSeq(long seq)
+    {
+        throw new MalformedMessageException("Unexpected SEQ");
+    }
+
+    /**
+     * ACK - The client's own MOVEs, RECOLORs and DELETEs, up to and including the one with this number (counting from
+     * 1 on each connection), have been applied; sent to the client in place of the change for the last of them.
+     */
+    public default void handleAck(long op)
+    {
+        throw new MalformedMessageException("Unexpected ACK");
+    }
+}
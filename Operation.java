@@ -0,0 +1,194 @@
+import java.awt.Color;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Operation - The registry of operations in the protocol, keyed both by their text command (the constant's name) and
+ * by their binary opcode. Each one knows how to read its own fields and which handler method to pass them to, so the
+ * same table drives decoding on the server and in the editor, for text and binary alike. Every operation reads all
+ * of its fields (and checks there is nothing more) before calling the handler.
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public enum Operation
+{
+    ADD(1)
+    {
+        public void decode(MessageDecoder in, MessageHandler handler)
+        {
+            Shape shape = in.readShape();
+            in.finish();
+            handler.handleAdd(shape);
+        }
+    },
+
+    ADD_ID(2)
+    {
+        public void decode(MessageDecoder in, MessageHandler handler)
+        {
+            int ID = in.readID();
+            Shape shape = in.readShape();
+            in.finish();
+            handler.handleAddID(ID, shape);
+        }
+    },
+
+    MOVE(3)
+    {
+        public void decode(MessageDecoder in, MessageHandler handler)
+        {
+            int ID = in.readID(), dx = in.readDelta(), dy = in.readDelta();
+            in.finish();
+            handler.handleMove(ID, dx, dy);
+        }
+    },
+
+    RECOLOR(4)
+    {
+        public void decode(MessageDecoder in, MessageHandler handler)
+        {
+            int ID = in.readID();
+            Color color = in.readColor();
+            in.finish();
+            handler.handleRecolor(ID, color);
+        }
+    },
+
+    DELETE(5)
+    {
+        public void decode(MessageDecoder in, MessageHandler handler)
+        {
+            int ID = in.readID();
+            in.finish();
+            handler.handleDelete(ID);
+        }
+    },
+
+    RESET(6)
+    {
+        public void decode(MessageDecoder in, MessageHandler handler)
+        {
+            in.finish();
+            handler.handleReset();
+        }
+    },
+
+    BATCH(7)
+    {
+        public void decode(MessageDecoder in, MessageHandler handler)
+        {
+            int count = in.readCount();
+            in.finish();
+            handler.handleBatch(count);
+        }
+    },
+
+    BEGIN_STROKE(8)
+    {
+        public void decode(MessageDecoder in, MessageHandler handler)
+        {
+            int x = in.readCoordinate(), y = in.readCoordinate();
+            Color color = in.readColor();
+            in.finish();
+            handler.handleBeginStroke(x, y, color);
+        }
+    },
+
+    APPEND_POINTS(9)
+    {
+        public void decode(MessageDecoder in, MessageHandler handler)
+        {
+            int count = in.readCoordinates();
+            in.finish();
+            handler.handleAppendPoints(in.getCoordinates(), count);
+        }
+    },
+
+    APPEND_POINTS_ID(10)
+    {
+        public void decode(MessageDecoder in, MessageHandler handler)
+        {
+            int ID = in.readID(), count = in.readCoordinates();
+            in.finish();
+            handler.handleAppendPointsID(ID, in.getCoordinates(), count);
+        }
+    },
+
+    END_STROKE(11)
+    {
+        public void decode(MessageDecoder in, MessageHandler handler)
+        {
+            in.finish();
+            handler.handleEndStroke();
+        }
+    },
+
+    SEQ(12)
+    {
+        public void decode(MessageDecoder in, MessageHandler handler)
+        {
+            long seq = in.readSequence();
+            in.finish();
+            handler.handleSeq(seq);
+        }
+    },
+
+    ACK(13)
+    {
+        public void decode(MessageDecoder in, MessageHandler handler)
+        {
+            long op = in.readSequence();
+            in.finish();
+            handler.handleAck(op);
+        }
+    };
+
+    public final byte opcode; // The binary opcode.
+    private final byte[] command; // The text command, as ASCII bytes.
+
+    private static final Operation[] all = values(); // Every operation (values() copies the array on each call).
+    private static final Operation[] byOpcode = new Operation[128];
+
+    static
+    {
+        for (Operation operation : all)
+            byOpcode[operation.opcode] = operation;
+    }
+
+    Operation(int opcode)
+    {
+        this.opcode = (byte) opcode;
+        command = name().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Reads the operation's fields from the decoder and passes them on to the handler.
+     */
+    public abstract void decode(MessageDecoder in, MessageHandler handler);
+
+    /**
+     * Looks up an operation by its binary opcode.
+     *
+     * @return The operation, or null if there is none.
+     */
+    public static Operation forOpcode(int opcode)
+    {
+        return opcode >= 0 && opcode < byOpcode.length ? byOpcode[opcode] : null;
+    }
+
+    /**
+     * Looks up an operation by its text command, straight from the bytes of a message.
+     *
+     * @return The operation, or null if there is none.
+     */
+    public static Operation forCommand(byte[] text, int offset, int length)
+    {
+        for (Operation operation : all)
+        {
+            if (Arrays.equals(operation.command, 0, operation.command.length, text, offset, offset + length))
+                return operation;
+        }
+
+        return null;
+    }
+}
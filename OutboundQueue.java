@@ -0,0 +1,332 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.*;
+
+/**
+ * Outbound Queue - The bounded queue of messages waiting to be written to one client, filled by broadcasts and drained
+ * by that client's writer (a writer thread, or the event loop in NIO mode). A client that falls so far behind that its
+ * queue fills up is a slow consumer, and is handled by the configured policy instead of stalling the broadcast:
+ *  RESYNC     - Throw away everything queued and send the client a fresh copy of the sketch instead.
+ *  COALESCE   - Fold the new MOVE into a queued MOVE of the same shape, resyncing only if that isn't possible.
+ *  DISCONNECT - Drop the client.
+ * Uses a ReentrantLock rather than synchronized, so that virtual threads waiting on it are not pinned.
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public class OutboundQueue
+{
+    public enum Policy
+    {
+        RESYNC, COALESCE, DISCONNECT
+    }
+
+    private WireMessage[] messages; // Circular buffer of messages.
+    private int head, size; // Index of the oldest message, and the number of messages.
+    private boolean resync; // Whether the client needs a fresh copy of the sketch before anything else.
+    private boolean closed; // Whether the client has been (or is to be) dropped.
+    private boolean woken; // Whether the writer has been asked to look for other work (such as a handshake line).
+
+    private Policy policy; // How to handle a full queue.
+    private SketchServerStats stats; // Where to count what happened.
+    private ReentrantLock lock = new ReentrantLock();
+    private Condition ready = lock.newCondition(); // Signalled when there is something for the writer to do.
+
+    public OutboundQueue(int capacity, Policy policy, SketchServerStats stats)
+    {
+        messages = new WireMessage[capacity];
+        this.policy = policy;
+        this.stats = stats;
+    }
+
+    /**
+     * Queues a message for the client, applying the slow consumer policy if the queue is full.
+     *
+     * @param message The message to send.
+     * @return False if the client has been dropped (possibly just now, for being too slow).
+     */
+    public boolean offer(WireMessage message)
+    {
+        lock.lock();
+        try
+        {
+            if (closed)
+                return false;
+
+            // A resync is already on its way, and will include the effect of this message.
+            if (resync)
+            {
+                stats.dropped.incrementAndGet();
+                return true;
+            }
+
+            if (size < messages.length)
+            {
+                messages[(head + size) % messages.length] = message;
+                size += 1;
+                stats.queued.incrementAndGet();
+            }
+
+            else if (policy == Policy.COALESCE && coalesce(message))
+                stats.coalesced.incrementAndGet();
+
+            else if (policy == Policy.DISCONNECT)
+            {
+                closed = true;
+                stats.disconnects.incrementAndGet();
+            }
+
+            else
+                startResync();
+
+            ready.signal();
+            return !closed;
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Asks for the client to be sent a fresh copy of the sketch (for instance, when it first connects).
+     */
+    public void requestResync()
+    {
+        lock.lock();
+        try
+        {
+            clear();
+            resync = true;
+            ready.signal();
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks (and clears) whether the client needs a fresh copy of the sketch, which the writer must send before
+     * anything else still queued.
+     */
+    public boolean takeResync()
+    {
+        lock.lock();
+        try
+        {
+            boolean result = resync;
+            resync = false;
+            return result;
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks (without clearing) whether the client needs a fresh copy of the sketch.
+     */
+    public boolean needsResync()
+    {
+        lock.lock();
+        try
+        {
+            return resync;
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the oldest message without waiting.
+     *
+     * @return The message, or null if there is none.
+     */
+    public WireMessage poll()
+    {
+        lock.lock();
+        try
+        {
+            return size == 0 ? null : remove();
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the oldest message, waiting for one if necessary.
+     *
+     * @param timeout How long to wait, in milliseconds.
+     * @return The message, or null if there is none by the timeout (or the client has been dropped, or needs a resync).
+     */
+    public WireMessage take(long timeout) throws InterruptedException
+    {
+        lock.lock();
+        try
+        {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (size == 0 && !closed && !resync && !woken && nanos > 0)
+                nanos = ready.awaitNanos(nanos);
+
+            woken = false;
+            return size == 0 || closed || resync ? null : remove();
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wakes the writer if it is waiting in take, so it can pick up work from elsewhere.
+     */
+    public void wake()
+    {
+        lock.lock();
+        try
+        {
+            woken = true;
+            ready.signal();
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the client: nothing more will be queued, and the writer will stop.
+     */
+    public void close()
+    {
+        lock.lock();
+        try
+        {
+            closed = true;
+            ready.signal();
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether there is anything for the writer to do: messages to write, a resync to send, or a client to drop.
+     */
+    public boolean hasWork()
+    {
+        lock.lock();
+        try
+        {
+            return size > 0 || resync || closed;
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed()
+    {
+        lock.lock();
+        try
+        {
+            return closed;
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Helper Method - Removes and returns the oldest message. The lock must be held.
+     */
+    private WireMessage remove()
+    {
+        WireMessage message = messages[head];
+        messages[head] = null;
+        head = (head + 1) % messages.length;
+        size -= 1;
+        return message;
+    }
+
+    /**
+     * Helper Method - Throws away everything queued, in favor of a fresh copy of the sketch. The lock must be held.
+     */
+    private void startResync()
+    {
+        stats.dropped.addAndGet(size);
+        stats.resyncs.incrementAndGet();
+        clear();
+        resync = true;
+    }
+
+    /**
+     * Helper Method - Throws away everything queued. The lock must be held.
+     */
+    private void clear()
+    {
+        while (size > 0)
+            remove();
+    }
+
+    /**
+     * Helper Method - Tries to fold a MOVE into an earlier queued MOVE of the same shape. Only looks back through the
+     * run of MOVEs at the end of the queue, since moves commute with each other but not with anything else (a DELETE,
+     * say). The lock must be held.
+     *
+     * @return Whether the message was folded in.
+     */
+    private boolean coalesce(WireMessage message)
+    {
+        if (!message.getText().startsWith("MOVE "))
+            return false;
+
+        String[] parts = message.getText().split(" ");
+
+        for (int i = size - 1; i >= 0; i -= 1)
+        {
+            int index = (head + i) % messages.length;
+            if (!messages[index].getText().startsWith("MOVE "))
+                return false;
+
+            String[] queued = messages[index].getText().split(" ");
+            if (queued[1].equals(parts[1]))
+            {
+                // The new MOVE now takes effect ahead of the MOVEs queued after the one it is folded into, so the
+                // client won't have exactly the changes up to any one number again until the end of the run (which
+                // is now as far as the new MOVE).
+                String merged = "MOVE " + parts[1] + " "
+                        + (Integer.parseInt(queued[2]) + Integer.parseInt(parts[2])) + " "
+                        + (Integer.parseInt(queued[3]) + Integer.parseInt(parts[3]));
+                messages[index] = new WireMessage(merged, i == size - 1 ? message.getSeq() : -1);
+
+                for (int j = i + 1; j < size; j += 1)
+                {
+                    int later = (head + j) % messages.length;
+                    messages[later] = messages[later].renumber(j == size - 1 ? message.getSeq() : -1);
+                }
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,185 @@
+import java.awt.Color;
+import java.util.ArrayDeque;
+
+/**
+ * Pending Changes - The MOVEs, RECOLORs and DELETEs an editor has applied to its own sketch (so they show straight
+ * away, however far off the server is) that the server hasn't acknowledged yet. The editor's sketch is always the
+ * server's sketch (as far as the editor has been told about it) with these changes applied on top.
+ * The server sends the editor an ACK in place of each of its own changes, so an ACK just means the change is now part
+ * of the server's sketch too, and nothing needs redrawing. A change from someone else was applied by the server before
+ * any change still pending here, so it is rebased under them: the pending changes to that shape are rolled back, the
+ * other change is applied, and they are applied again. A MOVE is rolled back by moving the shape back, while a RECOLOR
+ * or DELETE doesn't need rolling back, as applying it again overrides whatever came before it.
+ * Changes made between the editor's HELLO and the server's WELCOME are held back here too (neither applied nor sent),
+ * until the WELCOME says whether the server acknowledges them.
+ * Only used by the editor's communicator (with its lock held).
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public class PendingChanges
+{
+    private ArrayDeque<Change> changes = new ArrayDeque<>(); // In the order they were sent.
+    private ArrayDeque<Runnable> held = new ArrayDeque<>(); // Made before the WELCOME, in the order they were made.
+
+    /**
+     * Adds a MOVE (already applied to the editor's sketch, and just sent).
+     */
+    public void move(long op, int ID, int dx, int dy)
+    {
+        changes.add(new Change(op, Operation.MOVE, ID, dx, dy, null));
+    }
+
+    /**
+     * Adds a RECOLOR (already applied to the editor's sketch, and just sent).
+     */
+    public void recolor(long op, int ID, Color color)
+    {
+        changes.add(new Change(op, Operation.RECOLOR, ID, 0, 0, color));
+    }
+
+    /**
+     * Adds a DELETE (already applied to the editor's sketch, and just sent).
+     */
+    public void delete(long op, int ID)
+    {
+        changes.add(new Change(op, Operation.DELETE, ID, 0, 0, null));
+    }
+
+    /**
+     * Drops the changes the server has acknowledged (the one with this number, and those before it).
+     */
+    public void acknowledge(long op)
+    {
+        while (!changes.isEmpty() && changes.peek().op <= op)
+            changes.poll();
+    }
+
+    /**
+     * Holds back a change made before the server's WELCOME, to be made (applied and sent) once it has arrived.
+     *
+     * @param change Makes the change.
+     */
+    public void hold(Runnable change)
+    {
+        held.add(change);
+    }
+
+    /**
+     * Makes the changes held back, in the order they were made (once the WELCOME has arrived).
+     */
+    public void release()
+    {
+        while (!held.isEmpty())
+            held.poll().run();
+    }
+
+    /**
+     * Whether any changes are pending (sent, but not acknowledged). Changes held back don't count, as they haven't
+     * been applied to the editor's sketch.
+     */
+    public boolean isEmpty()
+    {
+        return changes.isEmpty();
+    }
+
+    /**
+     * Drops the changes pending, and those held back.
+     */
+    public void clear()
+    {
+        changes.clear();
+        held.clear();
+    }
+
+    /**
+     * Applies someone else's change to a shape in the sketch, under this editor's pending changes to the shape (if
+     * any).
+     *
+     * @param sketch The editor's sketch.
+     * @param ID The ID of the shape changed.
+     * @param change Applies the change to the sketch.
+     */
+    public void rebase(Sketch sketch, int ID, Runnable change)
+    {
+        // Adding up the pending movement of the shape, to roll it back.
+        int dx = 0, dy = 0;
+        boolean pending = false;
+        for (Change pendingChange : changes)
+        {
+            if (pendingChange.ID == ID)
+            {
+                pending = true;
+                dx += pendingChange.dx;
+                dy += pendingChange.dy;
+            }
+        }
+
+        if (!pending)
+        {
+            change.run();
+            return;
+        }
+
+        // Making the changes as one batch, so the shape is never drawn rolled back.
+        int rollbackX = dx, rollbackY = dy;
+        sketch.batch(() ->
+        {
+            if (rollbackX != 0 || rollbackY != 0)
+                sketch.moveShape(ID, -rollbackX, -rollbackY);
+
+            change.run();
+
+            for (Change pendingChange : changes)
+            {
+                if (pendingChange.ID == ID)
+                    pendingChange.applyTo(sketch);
+            }
+        });
+    }
+
+    /**
+     * Applies all the pending changes again, to a fresh copy of the server's sketch (which didn't include them).
+     */
+    public void reapply(Sketch sketch)
+    {
+        sketch.batch(() ->
+        {
+            for (Change change : changes)
+                change.applyTo(sketch);
+        });
+    }
+
+    /**
+     * Change - One pending change.
+     */
+    private static class Change
+    {
+        long op; // The change's number (see SketchServerSession).
+        Operation operation;
+        int ID, dx, dy;
+        Color color;
+
+        Change(long op, Operation operation, int ID, int dx, int dy, Color color)
+        {
+            this.op = op;
+            this.operation = operation;
+            this.ID = ID;
+            this.dx = dx;
+            this.dy = dy;
+            this.color = color;
+        }
+
+        /**
+         * Applies the change to a sketch.
+         */
+        void applyTo(Sketch sketch)
+        {
+            switch (operation)
+            {
+                case MOVE -> sketch.moveShape(ID, dx, dy);
+                case RECOLOR -> sketch.recolorShape(ID, color);
+                case DELETE -> sketch.deleteShape(ID);
+            }
+        }
+    }
+}
@@ -0,0 +1,279 @@
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Persistent Map - A map from longs to values that is never changed: putting or removing a key gives a new map, and
+ * the old one stays just as it was, so any number of threads can read a map while another builds the next one from it,
+ * with no locks (see SketchVersion).
+ * It is a hash array mapped trie: each node covers 5 more bits of the key's hash, and only holds slots for the branches
+ * in use (a bitmap says which), so a new map only copies the nodes on the path to the key changed (a few dozen
+ * references, for a map of thousands), and shares all the rest with the old one. The hash mixes every bit of the key
+ * into every bit of the hash, and no two keys have the same hash, so keys that only differ in their high bits (such as
+ * two grid cells in the same row) still branch off near the root.
+ * Values may not be null.
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public class PersistentMap<V>
+{
+    private static final int BITS = 5; // Bits of the hash per level (32 branches a node).
+    private static final PersistentMap<?> EMPTY = new PersistentMap<>(null, 0);
+
+    private final Node root; // Null if the map is empty.
+    private final int size;
+
+    private PersistentMap(Node root, int size)
+    {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * The empty map.
+     */
+    @SuppressWarnings("unchecked")
+    public static <V> PersistentMap<V> empty()
+    {
+        return (PersistentMap<V>) EMPTY;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * The value for a key.
+     *
+     * @param key The key.
+     * @return The value, or null if the key isn't in the map.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key)
+    {
+        long hash = hash(key);
+        Node node = root;
+        for (int shift = 0; node != null; shift += BITS)
+        {
+            int bit = bit(hash, shift);
+            if ((node.bitmap & bit) == 0)
+                return null;
+
+            Object slot = node.slots[node.index(bit)];
+            if (slot instanceof Leaf leaf)
+                return leaf.key == key ? (V) leaf.value : null;
+
+            node = (Node) slot;
+        }
+
+        return null;
+    }
+
+    /**
+     * A map with a key set to a value (whether or not it was in this one).
+     *
+     * @param key The key.
+     * @param value The value (not null).
+     * @return The new map.
+     */
+    public PersistentMap<V> put(long key, V value)
+    {
+        int newSize = get(key) == null ? size + 1 : size;
+        Leaf leaf = new Leaf(key, hash(key), value);
+        return new PersistentMap<>(root == null ? new Node(bit(leaf.hash, 0), new Object[] {leaf}) : put(root, 0, leaf),
+                newSize);
+    }
+
+    /**
+     * A map without a key.
+     *
+     * @param key The key.
+     * @return The new map (this one, if the key isn't in it).
+     */
+    public PersistentMap<V> remove(long key)
+    {
+        if (root == null)
+            return this;
+
+        Object newRoot = remove(root, 0, key, hash(key));
+        if (newRoot == root)
+            return this;
+
+        return new PersistentMap<>((Node) newRoot, size - 1);
+    }
+
+    /**
+     * Goes through every key and value (in no particular order).
+     *
+     * @param action Given each value, and its key.
+     */
+    public void forEach(ObjLongConsumer<V> action)
+    {
+        if (root != null)
+            forEach(root, action);
+    }
+
+    /**
+     * Helper Method - A node with a leaf put into it (or under it), for a node at a given depth.
+     */
+    private static Node put(Node node, int shift, Leaf leaf)
+    {
+        int bit = bit(leaf.hash, shift), index = node.index(bit);
+
+        // Nothing on this branch yet, so the leaf goes here.
+        if ((node.bitmap & bit) == 0)
+        {
+            Object[] slots = new Object[node.slots.length + 1];
+            System.arraycopy(node.slots, 0, slots, 0, index);
+            slots[index] = leaf;
+            System.arraycopy(node.slots, index, slots, index + 1, node.slots.length - index);
+            return new Node(node.bitmap | bit, slots);
+        }
+
+        Object slot = node.slots[index], replacement;
+        if (slot instanceof Leaf other)
+            replacement = other.key == leaf.key ? leaf : split(other, leaf, shift + BITS);
+        else
+            replacement = put((Node) slot, shift + BITS, leaf);
+
+        Object[] slots = node.slots.clone();
+        slots[index] = replacement;
+        return new Node(node.bitmap, slots);
+    }
+
+    /**
+     * Helper Method - A node holding two leaves whose hashes are the same up to a given depth, branching off where they
+     * first differ (which they do somewhere, as no two keys have the same hash).
+     */
+    private static Node split(Leaf a, Leaf b, int shift)
+    {
+        int bitA = bit(a.hash, shift), bitB = bit(b.hash, shift);
+        if (bitA == bitB)
+            return new Node(bitA, new Object[] {split(a, b, shift + BITS)});
+
+        // Comparing unsigned, as the bit for the last branch is the sign bit.
+        Object[] slots = Integer.compareUnsigned(bitA, bitB) < 0 ? new Object[] {a, b} : new Object[] {b, a};
+        return new Node(bitA | bitB, slots);
+    }
+
+    /**
+     * Helper Method - A node with a key removed from it (or from under it): the same node if the key isn't there, null
+     * if nothing is left, or (below the root) a lone leaf, to go in the node above in place of this one.
+     */
+    private static Object remove(Node node, int shift, long key, long hash)
+    {
+        int bit = bit(hash, shift), index = node.index(bit);
+        if ((node.bitmap & bit) == 0)
+            return node;
+
+        Object slot = node.slots[index], replacement;
+        if (slot instanceof Leaf leaf)
+        {
+            if (leaf.key != key)
+                return node;
+
+            replacement = null;
+        }
+
+        else
+        {
+            replacement = remove((Node) slot, shift + BITS, key, hash);
+            if (replacement == slot)
+                return node;
+        }
+
+        if (replacement == null)
+        {
+            if (node.slots.length == 1)
+                return null;
+
+            // Passing the one leaf left up to the node above, so that no branch is longer than it needs to be.
+            if (node.slots.length == 2 && shift > 0 && node.slots[1 - index] instanceof Leaf other)
+                return other;
+
+            Object[] slots = new Object[node.slots.length - 1];
+            System.arraycopy(node.slots, 0, slots, 0, index);
+            System.arraycopy(node.slots, index + 1, slots, index, slots.length - index);
+            return new Node(node.bitmap & ~bit, slots);
+        }
+
+        if (node.slots.length == 1 && shift > 0 && replacement instanceof Leaf)
+            return replacement;
+
+        Object[] slots = node.slots.clone();
+        slots[index] = replacement;
+        return new Node(node.bitmap, slots);
+    }
+
+    /**
+     * Helper Method - Goes through every leaf under a node.
+     */
+    @SuppressWarnings("unchecked")
+    private static <V> void forEach(Node node, ObjLongConsumer<V> action)
+    {
+        for (Object slot : node.slots)
+        {
+            if (slot instanceof Leaf leaf)
+                action.accept((V) leaf.value, leaf.key);
+            else
+                forEach((Node) slot, action);
+        }
+    }
+
+    /**
+     * Helper Method - The hash of a key (the finalizer of SplitMix64). Each step can be undone, so no two keys have the
+     * same hash.
+     */
+    private static long hash(long key)
+    {
+        key = (key ^ (key >>> 30)) * 0xBF58476D1CE4E5B9L;
+        key = (key ^ (key >>> 27)) * 0x94D049BB133111EBL;
+        return key ^ (key >>> 31);
+    }
+
+    /**
+     * Helper Method - The bit for the branch a hash takes at a given depth.
+     */
+    private static int bit(long hash, int shift)
+    {
+        return 1 << (int) ((hash >>> shift) & 31);
+    }
+
+    /**
+     * Node - The branches in use at one level, in order, each a Leaf or a Node.
+     */
+    private static class Node
+    {
+        final int bitmap; // Which of the 32 branches are in use.
+        final Object[] slots;
+
+        Node(int bitmap, Object[] slots)
+        {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        /**
+         * The slot for a branch (in use or not): the number of branches in use before it.
+         */
+        int index(int bit)
+        {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+    }
+
+    /**
+     * Leaf - One key and its value.
+     */
+    private static class Leaf
+    {
+        final long key, hash;
+        final Object value;
+
+        Leaf(long key, long hash, Object value)
+        {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+        }
+    }
+}
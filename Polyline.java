@@ -1,12 +1,17 @@
 import java.awt.Color;
 import java.awt.Graphics;
-import java.awt.Point;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
 
 /**
  * A Multi-Segment Shape
  * Straight lines connect "joint" points: (x1, y1) to (x2, y2) to (x3, y3)...
+ * The points are kept in two growable int arrays (x coordinates and y coordinates), rather than as a list of Point
+ * objects, so a freehand stroke of thousands of points costs 8 bytes a point and no pointer chasing to draw, test, or
+ * move.
+ * Freehand strokes are simplified twice: the editor skips points closer than a tolerance to the last one as they are
+ * drawn (addPoint with a tolerance), and the server removes the points the finished stroke doesn't need (simplify,
+ * using Ramer-Douglas-Peucker).
  *
  * @author Chris Bailey-Kellogg, Dartmouth CS 10, Spring 2016
  * @author CBK, Fall 2016
@@ -14,8 +19,11 @@ import java.util.List;
  */
 public class Polyline implements Shape
 {
-    private List<Point> points;
+    private int[] xs, ys; // The coordinates of the points (only the first count are in use).
+    private int count; // The number of points.
     private Color color;
+    private int minX, minY, maxX, maxY; // The extent of the points, kept up to date as points are added.
+    private java.awt.Rectangle bounds; // Cached bounds (null until asked for, or after a change).
 
     /**
      * An initial 0-length segment at a point, with a color.
@@ -26,8 +34,14 @@ public class Polyline implements Shape
      */
     public Polyline(int x1, int y1, Color color)
     {
-        points = new ArrayList<>();
-        points.add(new Point(x1, y1));
+        xs = new int[8];
+        ys = new int[8];
+        xs[0] = x1;
+        ys[0] = y1;
+        count = 1;
+
+        minX = maxX = x1;
+        minY = maxY = y1;
         this.color = color;
     }
 
@@ -42,12 +56,52 @@ public class Polyline implements Shape
      */
     public Polyline(int x1, int y1, int x2, int y2, Color color)
     {
-        points = new ArrayList<>();
-        points.add(new Point(x1, y1));
-        points.add(new Point(x2, y2));
+        this(x1, y1, color);
+        append(x2, y2);
+    }
+
+    /**
+     * A complete polyline, from its coordinates (as they arrive in a message), with a color. The arrays are sized
+     * exactly, since a complete polyline doesn't grow.
+     *
+     * @param coordinates The coordinates, x1, y1, x2, y2...
+     * @param length The number of coordinates (twice the number of points, and at least 2).
+     * @param color The color of the Polyline.
+     */
+    public Polyline(int[] coordinates, int length, Color color)
+    {
+        count = length / 2;
+        xs = new int[count];
+        ys = new int[count];
+
+        minX = minY = Integer.MAX_VALUE;
+        maxX = maxY = Integer.MIN_VALUE;
+
+        for (int i = 0; i < count; i += 1)
+        {
+            xs[i] = coordinates[2 * i];
+            ys[i] = coordinates[2 * i + 1];
+            grow(xs[i], ys[i]);
+        }
+
         this.color = color;
     }
 
+    /**
+     * Helper Method - A copy of another polyline, with its own arrays or sharing the other's (see extend).
+     */
+    private Polyline(Polyline other, boolean share)
+    {
+        count = other.count;
+        xs = share ? other.xs : Arrays.copyOf(other.xs, count);
+        ys = share ? other.ys : Arrays.copyOf(other.ys, count);
+        minX = other.minX;
+        minY = other.minY;
+        maxX = other.maxX;
+        maxY = other.maxY;
+        color = other.color;
+    }
+
     /**
      * Adding a Point to the List, which allows for "freehand" drawing.
      *
@@ -56,7 +110,134 @@ public class Polyline implements Shape
      */
     public void addPoint(int x2, int y2)
     {
-        points.add(new Point(x2, y2));
+        append(x2, y2);
+    }
+
+    /**
+     * Helper Method - Adds a point (used by the constructors as well, so they don't call a method that could be
+     * overridden).
+     */
+    private void append(int x2, int y2)
+    {
+        // Making room, half as much again each time, so adding a point costs the same on average however many there are.
+        if (count == xs.length)
+        {
+            xs = Arrays.copyOf(xs, count + Math.max(count / 2, 8));
+            ys = Arrays.copyOf(ys, xs.length);
+        }
+
+        xs[count] = x2;
+        ys[count] = y2;
+        count += 1;
+
+        grow(x2, y2);
+    }
+
+    /**
+     * Adding a Point to the List, unless it is too close to the last one to make a difference (such as the many
+     * sub-pixel steps a high polling rate mouse reports).
+     *
+     * @param x2 The x coordinate of the Point to add.
+     * @param y2 The y coordinate of the Point to add.
+     * @param tolerance How close (in pixels) a point has to be to the last one to be skipped.
+     * @return Whether the point was added.
+     */
+    public boolean addPoint(int x2, int y2, double tolerance)
+    {
+        if (Segment.dist2(x2, y2, xs[count - 1], ys[count - 1]) <= tolerance * tolerance)
+            return false;
+
+        addPoint(x2, y2);
+        return true;
+    }
+
+    /**
+     * Simplify - Removes the points that make no difference to the line beyond a tolerance, using Ramer-Douglas-Peucker:
+     * the end points are kept, and so (recursively, on either side of it) is the point furthest from the segment
+     * between them, if it is further than the tolerance. Straight runs and jitter collapse to a few points, while
+     * corners are kept.
+     *
+     * @param tolerance How far (in pixels) the line may move.
+     * @return The number of points removed.
+     */
+    public int simplify(double tolerance)
+    {
+        if (count <= 2)
+            return 0;
+
+        boolean[] keep = new boolean[count];
+        keep[0] = true;
+        keep[count - 1] = true;
+
+        // Working through the stretches still to simplify with a stack of (first, last) pairs, rather than recursion,
+        // so a stroke of thousands of points can't overflow the call stack.
+        int[] stack = new int[2 * count];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = count - 1;
+
+        while (top > 0)
+        {
+            int last = stack[--top], first = stack[--top];
+
+            // Finding the point furthest from the segment between the ends of the stretch.
+            int furthest = -1;
+            double furthestDistance = tolerance;
+            for (int i = first + 1; i < last; i += 1)
+            {
+                double distance = Segment.pointToSegmentDistance(xs[i], ys[i], xs[first], ys[first], xs[last], ys[last]);
+                if (distance > furthestDistance)
+                {
+                    furthest = i;
+                    furthestDistance = distance;
+                }
+            }
+
+            if (furthest != -1)
+            {
+                keep[furthest] = true;
+                stack[top++] = first;
+                stack[top++] = furthest;
+                stack[top++] = furthest;
+                stack[top++] = last;
+            }
+        }
+
+        // Closing up the points kept, and trimming the arrays down to them.
+        int kept = 0;
+        for (int i = 0; i < count; i += 1)
+        {
+            if (keep[i])
+            {
+                xs[kept] = xs[i];
+                ys[kept] = ys[i];
+                kept += 1;
+            }
+        }
+
+        int removed = count - kept;
+        if (removed > 0)
+        {
+            count = kept;
+            xs = Arrays.copyOf(xs, count);
+            ys = Arrays.copyOf(ys, count);
+
+            // The extent may have shrunk, if a point at its edge was removed.
+            minX = maxX = xs[0];
+            minY = maxY = ys[0];
+            for (int i = 1; i < count; i += 1)
+                grow(xs[i], ys[i]);
+        }
+
+        return removed;
+    }
+
+    /**
+     * The number of points.
+     */
+    public int size()
+    {
+        return count;
     }
 
     /**
@@ -68,12 +249,18 @@ public class Polyline implements Shape
     @Override
     public void moveBy(int dx, int dy)
     {
-        // Cycling through all the points in the list, adjusting each appropriately.
-        for (Point p: points)
+        // Cycling through all the points, adjusting each appropriately.
+        for (int i = 0; i < count; i += 1)
         {
-            p.x += dx;
-            p.y += dy;
+            xs[i] += dx;
+            ys[i] += dy;
         }
+
+        minX += dx;
+        minY += dy;
+        maxX += dx;
+        maxY += dy;
+        bounds = null;
     }
 
     @Override
@@ -88,6 +275,25 @@ public class Polyline implements Shape
         this.color = color;
     }
 
+    @Override
+    public Polyline copy()
+    {
+        return new Polyline(this, false);
+    }
+
+    /**
+     * Extend - A copy of the polyline to add points to, which shares this one's arrays rather than copying them (the
+     * points of a stroke being drawn arrive a few at a time, so copying them all each time would cost as much as the
+     * stroke again, every time). The points added to the copy go past this one's count, where this one never looks,
+     * so this one is unchanged, as long as no points are added to it (or it is moved) afterwards.
+     *
+     * @return The copy.
+     */
+    public Polyline extend()
+    {
+        return new Polyline(this, true);
+    }
+
     /**
      * Contains Method - Utilizes the static function in Segment.java to determine if a point is within the Polyline shape.
      *
@@ -98,10 +304,10 @@ public class Polyline implements Shape
     public boolean contains(int x, int y)
     {
         // Cycling through each segment of the polyline.
-        for (int i = 0; i < points.size() - 1; i += 1)
+        for (int i = 0; i < count - 1; i += 1)
         {
             // Checking to see if the point is close enough to the Polyline shape.
-            if (Segment.pointToSegmentDistance(x, y, points.get(i).x, points.get(i).y, points.get(i + 1).x, points.get(i + 1).y) <= 3)
+            if (Segment.pointToSegmentDistance(x, y, xs[i], ys[i], xs[i + 1], ys[i + 1]) <= Segment.CLICK_DISTANCE)
                 return true;
         }
 
@@ -110,7 +316,23 @@ public class Polyline implements Shape
     }
 
     /**
-     * Draw - Cycles through each segment of the Polyline, drawing them in order.
+     * Get Bounds - The rectangle around all the points (from the extent kept as they are added, rather than looking
+     * at each one), widened to include the points near enough to click on.
+     */
+    @Override
+    public java.awt.Rectangle getBounds()
+    {
+        if (bounds == null)
+        {
+            int d = Segment.CLICK_DISTANCE;
+            bounds = new java.awt.Rectangle(minX - d, minY - d, maxX - minX + 1 + 2 * d, maxY - minY + 1 + 2 * d);
+        }
+
+        return bounds;
+    }
+
+    /**
+     * Draw - Draws all the segments of the Polyline in one go, straight from the coordinate arrays.
      *
      * @param g The graphics to use when drawing the Polyline.
      */
@@ -119,12 +341,44 @@ public class Polyline implements Shape
     {
         // Setting the color for the shape.
         g.setColor(color);
+        g.drawPolyline(xs, ys, count);
+    }
+
+    /**
+     * Append To - Writes the polyline onto the end of a buffer, making room for all of it first, so that even a stroke
+     * of thousands of points is written in one pass with no copying along the way.
+     */
+    @Override
+    public StringBuilder appendTo(StringBuilder out)
+    {
+        // About a dozen characters a point is enough for coordinates of up to 5 digits.
+        out.ensureCapacity(out.length() + 12 * count + 20);
+        out.append("Polyline ");
+
+        // Cycling through all the points of the polyline.
+        for (int i = 0; i < count; i += 1)
+            out.append(xs[i]).append(' ').append(ys[i]).append(' ');
+
+        return out.append(color.getRGB());
+    }
+
+    /**
+     * Write To - Writes the polyline as it is sent in a binary frame, straight from the coordinate arrays, each point as
+     * the step from the last one (see BinaryProtocol).
+     */
+    @Override
+    public void writeTo(ByteArrayOutputStream out)
+    {
+        out.write(ShapeType.POLYLINE.code);
+        BinaryProtocol.writeVarint(out, 2 * count);
 
-        // Cycling through each segment of the polyline and drawing it.
-        for (int i = 0; i < points.size() - 1; i += 1)
+        for (int i = 0; i < count; i += 1)
         {
-            g.drawLine(points.get(i).x, points.get(i).y, points.get(i + 1).x, points.get(i + 1).y);
+            BinaryProtocol.writeSigned(out, xs[i] - (i > 0 ? xs[i - 1] : 0));
+            BinaryProtocol.writeSigned(out, ys[i] - (i > 0 ? ys[i - 1] : 0));
         }
+
+        BinaryProtocol.writeInt(out, color.getRGB());
     }
 
     /**
@@ -133,14 +387,18 @@ public class Polyline implements Shape
     @Override
     public String toString()
     {
-        String middle = "";
-
-        // Cycling through all the points of the polyline.
-        for (Point p: points)
-        {
-            middle += p.x + " " + p.y + " ";
-        }
+        return appendTo(new StringBuilder()).toString();
+    }
 
-        return "Polyline " + middle + color.getRGB();
+    /**
+     * Helper Method - Grows the extent to take in a new point.
+     */
+    private void grow(int x, int y)
+    {
+        minX = Math.min(minX, x);
+        minY = Math.min(minY, y);
+        maxX = Math.max(maxX, x);
+        maxY = Math.max(maxY, y);
+        bounds = null;
     }
 }
@@ -1,5 +1,6 @@
 import java.awt.Color;
 import java.awt.Graphics;
+import java.io.ByteArrayOutputStream;
 
 /**
  * A Rectangle-Shaped Shape
@@ -12,6 +13,7 @@ import java.awt.Graphics;
 public class Rectangle implements Shape
 {
     private int x1, y1, x2, y2; // Upper left and lower right.
+    private java.awt.Rectangle bounds; // Cached bounds (null until asked for, or after a change).
     private Color color;
 
     /**
@@ -60,6 +62,7 @@ public class Rectangle implements Shape
         this.y1 = Math.min(y1, y2);
         this.x2 = Math.max(x1, x2);
         this.y2 = Math.max(y1, y2);
+        bounds = null;
     }
 
     @Override
@@ -69,6 +72,7 @@ public class Rectangle implements Shape
         y1 += dy;
         x2 += dx;
         y2 += dy;
+        bounds = null;
     }
 
     @Override
@@ -77,6 +81,15 @@ public class Rectangle implements Shape
         return ((x >= x1) && (x <= x2)) && ((y >= y1) && (y <= y2));
     }
 
+    @Override
+    public java.awt.Rectangle getBounds()
+    {
+        if (bounds == null)
+            bounds = new java.awt.Rectangle(x1, y1, x2 - x1 + 1, y2 - y1 + 1);
+
+        return bounds;
+    }
+
     @Override
     public Color getColor()
     {
@@ -89,6 +102,12 @@ public class Rectangle implements Shape
         this.color = color;
     }
 
+    @Override
+    public Rectangle copy()
+    {
+        return new Rectangle(x1, y1, x2, y2, color);
+    }
+
     @Override
     public void draw(Graphics g)
     {
@@ -96,9 +115,24 @@ public class Rectangle implements Shape
         g.fillRect(x1, y1, x2 - x1, y2 - y1);
     }
 
+    @Override
+    public StringBuilder appendTo(StringBuilder out)
+    {
+        return out.append("Rectangle ").append(x1).append(' ').append(y1).append(' ').append(x2).append(' ').append(y2)
+                .append(' ').append(color.getRGB());
+    }
+
+    @Override
+    public void writeTo(ByteArrayOutputStream out)
+    {
+        out.write(ShapeType.RECTANGLE.code);
+        BinaryProtocol.writeCoordinates(out, new int[] {x1, y1, x2, y2}, 4);
+        BinaryProtocol.writeInt(out, color.getRGB());
+    }
+
     @Override
     public String toString()
     {
-        return "Rectangle " + x1 + " " + y1 + " " + x2 + " " + y2 + " " + color.getRGB();
+        return appendTo(new StringBuilder()).toString();
     }
 }
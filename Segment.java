@@ -1,5 +1,6 @@
 import java.awt.Color;
 import java.awt.Graphics;
+import java.io.ByteArrayOutputStream;
 
 /**
  * A Line Segment-Shaped Shape
@@ -11,7 +12,10 @@ import java.awt.Graphics;
  */
 public class Segment implements Shape
 {
+    public static final int CLICK_DISTANCE = 3; // How close a click has to be to count as being on the line.
+
     private int x1, y1, x2, y2; // Two Endpoints
+    private java.awt.Rectangle bounds; // Cached bounds (null until asked for, or after a change).
     private Color color;
 
     /**
@@ -58,6 +62,7 @@ public class Segment implements Shape
     {
         this.x1 = x1;
         this.y1 = y1;
+        bounds = null;
     }
 
     /**
@@ -70,6 +75,7 @@ public class Segment implements Shape
     {
         this.x2 = x2;
         this.y2 = y2;
+        bounds = null;
     }
 
     @Override
@@ -79,6 +85,7 @@ public class Segment implements Shape
         y1 += dy;
         x2 += dx;
         y2 += dy;
+        bounds = null;
     }
 
     @Override
@@ -93,10 +100,29 @@ public class Segment implements Shape
         this.color = color;
     }
 
+    @Override
+    public Segment copy()
+    {
+        return new Segment(x1, y1, x2, y2, color);
+    }
+
     @Override
     public boolean contains(int x, int y)
     {
-        return pointToSegmentDistance(x, y, x1, y1, x2, y2) <= 3;
+        return pointToSegmentDistance(x, y, x1, y1, x2, y2) <= CLICK_DISTANCE;
+    }
+
+    @Override
+    public java.awt.Rectangle getBounds()
+    {
+        if (bounds == null)
+        {
+            // Including the points near enough to the line to count as clicking on it.
+            bounds = new java.awt.Rectangle(Math.min(x1, x2) - CLICK_DISTANCE, Math.min(y1, y2) - CLICK_DISTANCE,
+                    Math.abs(x2 - x1) + 1 + 2 * CLICK_DISTANCE, Math.abs(y2 - y1) + 1 + 2 * CLICK_DISTANCE);
+        }
+
+        return bounds;
     }
 
     /**
@@ -141,9 +167,24 @@ public class Segment implements Shape
         g.drawLine(x1, y1, x2, y2);
     }
 
+    @Override
+    public StringBuilder appendTo(StringBuilder out)
+    {
+        return out.append("Segment ").append(x1).append(' ').append(y1).append(' ').append(x2).append(' ').append(y2)
+                .append(' ').append(color.getRGB());
+    }
+
+    @Override
+    public void writeTo(ByteArrayOutputStream out)
+    {
+        out.write(ShapeType.SEGMENT.code);
+        BinaryProtocol.writeCoordinates(out, new int[] {x1, y1, x2, y2}, 4);
+        BinaryProtocol.writeInt(out, color.getRGB());
+    }
+
     @Override
     public String toString()
     {
-        return "Segment " + x1 + " " + y1 + " " + x2 + " " + y2 + " " + color.getRGB();
+        return appendTo(new StringBuilder()).toString();
     }
 }
@@ -1,5 +1,6 @@
 import java.awt.Color;
 import java.awt.Graphics;
+import java.io.ByteArrayOutputStream;
 
 /**
  * Shape
@@ -27,6 +28,15 @@ public interface Shape
      */
     public boolean contains(int x, int y);
 
+    /**
+     * Get Bounds - The smallest rectangle around every point the shape contains or is drawn on, used to find the
+     * shapes near a point (or an area) without asking every shape. Cached by the shape, and replaced (never changed in
+     * place) when the shape changes, so it is cheap to ask for on every paint and safe to hold on to.
+     *
+     * @return The bounds, which must not be modified.
+     */
+    public java.awt.Rectangle getBounds();
+
     /**
      * Get Color
      *
@@ -41,10 +51,35 @@ public interface Shape
      */
     public void setColor(Color color);
 
+    /**
+     * Copy - A shape just like this one, which can be changed without changing this one. A sketch never changes a shape
+     * in place (a published version of it may still be drawing the shape), but changes a copy (see Sketch).
+     *
+     * @return The copy.
+     */
+    public Shape copy();
+
     /**
      * Draws the shape.
      *
      * @param g The graphics to use.
      */
     public void draw(Graphics g);
+
+    /**
+     * Append To - Writes the shape as it is sent over the wire ("Type coordinates... color", the same as toString)
+     * onto the end of a buffer, so that a message can be built up in one buffer rather than from a String per part.
+     *
+     * @param out The buffer to write to.
+     * @return The buffer, for chaining.
+     */
+    public StringBuilder appendTo(StringBuilder out);
+
+    /**
+     * Write To - Writes the shape as it is sent in a binary frame (its type code, coordinates and color, see
+     * BinaryProtocol) onto the end of a buffer, straight from its fields.
+     *
+     * @param out The buffer to write to.
+     */
+    public void writeTo(ByteArrayOutputStream out);
 }
@@ -0,0 +1,214 @@
+import java.util.*;
+
+/**
+ * Shape Grid - A spatial index over the shapes in a sketch. The canvas is cut into square cells, and each shape is
+ * listed (by ID) in every cell its bounds overlap, so finding the shape under a point only means testing the few shapes
+ * listed in that point's cell, rather than every shape in the sketch. Shapes so big that they would be listed in too
+ * many cells are kept in a list of their own, which is always tested.
+ * The shapes are tested topmost (highest ID, drawn last) first, so a click picks the shape the user can actually see.
+ * A grid is never changed: adding or removing a shape gives a new grid, which shares all but the cells the shape is in
+ * with the old one, so each version of a sketch has a grid of its own to search (see SketchVersion). The cells are kept
+ * in a PersistentMap, and each cell's IDs in a sorted array, copied (with the ID added or removed) when it changes.
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public class ShapeGrid
+{
+    public static final int CELL_SIZE = 64; // Width and height of a cell, in pixels.
+    private static final int MAX_CELLS = 256; // Shapes overlapping more cells than this go in the list of large shapes.
+    private static final int[] NONE = new int[0];
+    public static final ShapeGrid EMPTY = new ShapeGrid(PersistentMap.empty(), NONE);
+
+    private final PersistentMap<int[]> cells; // Cell -> IDs of the shapes overlapping it, in order.
+    private final int[] large; // IDs of the shapes too big to list cell by cell, in order.
+
+    private ShapeGrid(PersistentMap<int[]> cells, int[] large)
+    {
+        this.cells = cells;
+        this.large = large;
+    }
+
+    /**
+     * A grid with a shape listed in the cells its bounds overlap (which it mustn't be listed in already).
+     *
+     * @param ID The ID of the shape.
+     * @param shape The shape, in its current position.
+     * @return The new grid.
+     */
+    public ShapeGrid add(int ID, Shape shape)
+    {
+        java.awt.Rectangle bounds = shape.getBounds();
+        if (isLarge(bounds))
+            return new ShapeGrid(cells, with(large, ID));
+
+        PersistentMap<int[]> newCells = cells;
+        for (int cx = cell(bounds.x); cx <= cell(bounds.x + bounds.width - 1); cx += 1)
+        {
+            for (int cy = cell(bounds.y); cy <= cell(bounds.y + bounds.height - 1); cy += 1)
+            {
+                int[] IDs = newCells.get(key(cx, cy));
+                newCells = newCells.put(key(cx, cy), with(IDs == null ? NONE : IDs, ID));
+            }
+        }
+
+        return new ShapeGrid(newCells, large);
+    }
+
+    /**
+     * A grid without a shape.
+     *
+     * @param ID The ID of the shape.
+     * @param shape The shape, as it was when it was added (so it is found in the same cells).
+     * @return The new grid.
+     */
+    public ShapeGrid remove(int ID, Shape shape)
+    {
+        java.awt.Rectangle bounds = shape.getBounds();
+        if (isLarge(bounds))
+            return new ShapeGrid(cells, without(large, ID));
+
+        PersistentMap<int[]> newCells = cells;
+        for (int cx = cell(bounds.x); cx <= cell(bounds.x + bounds.width - 1); cx += 1)
+        {
+            for (int cy = cell(bounds.y); cy <= cell(bounds.y + bounds.height - 1); cy += 1)
+            {
+                int[] IDs = newCells.get(key(cx, cy));
+                if (IDs == null)
+                    continue;
+
+                IDs = without(IDs, ID);
+
+                // Dropping empty cells, so that shapes moving all over the place don't leave a trail behind them.
+                newCells = IDs.length == 0 ? newCells.remove(key(cx, cy)) : newCells.put(key(cx, cy), IDs);
+            }
+        }
+
+        return new ShapeGrid(newCells, large);
+    }
+
+    /**
+     * Finds the topmost shape containing a point, testing only the shapes listed in the point's cell (and the large
+     * ones), highest ID first.
+     *
+     * @param x The x coordinate of the point.
+     * @param y The y coordinate of the point.
+     * @param shapes The shapes, by ID.
+     * @return The ID of the shape, or -1 if there is none.
+     */
+    public int find(int x, int y, PersistentMap<Shape> shapes)
+    {
+        int[] cell = cells.get(key(cell(x), cell(y)));
+        if (cell == null)
+            cell = NONE;
+
+        // Merging the two lists of candidates, highest ID first.
+        int inCell = cell.length - 1, inLarge = large.length - 1;
+        while (inCell >= 0 || inLarge >= 0)
+        {
+            int ID;
+            if (inLarge < 0 || (inCell >= 0 && cell[inCell] > large[inLarge]))
+            {
+                ID = cell[inCell];
+                inCell -= 1;
+            }
+
+            else
+            {
+                ID = large[inLarge];
+                inLarge -= 1;
+            }
+
+            if (shapes.get(ID).contains(x, y))
+                return ID;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Finds the shapes listed in the cells an area overlaps (and the large ones), which includes every shape whose
+     * bounds overlap the area (and maybe a few more, near it).
+     *
+     * @param area The area.
+     * @return The IDs of the shapes, lowest (drawn first) first.
+     */
+    public SortedSet<Integer> overlapping(java.awt.Rectangle area)
+    {
+        SortedSet<Integer> IDs = new TreeSet<>();
+        for (int ID : large)
+            IDs.add(ID);
+
+        for (int cx = cell(area.x); cx <= cell(area.x + area.width - 1); cx += 1)
+        {
+            for (int cy = cell(area.y); cy <= cell(area.y + area.height - 1); cy += 1)
+            {
+                int[] cellIDs = cells.get(key(cx, cy));
+                if (cellIDs != null)
+                {
+                    for (int ID : cellIDs)
+                        IDs.add(ID);
+                }
+            }
+        }
+
+        return IDs;
+    }
+
+    /**
+     * Helper Method - A copy of a sorted array of IDs with one more in its place.
+     */
+    private static int[] with(int[] IDs, int ID)
+    {
+        int index = Arrays.binarySearch(IDs, ID);
+        if (index >= 0)
+            return IDs;
+
+        index = -index - 1;
+        int[] copy = new int[IDs.length + 1];
+        System.arraycopy(IDs, 0, copy, 0, index);
+        copy[index] = ID;
+        System.arraycopy(IDs, index, copy, index + 1, IDs.length - index);
+        return copy;
+    }
+
+    /**
+     * Helper Method - A copy of a sorted array of IDs without one of them.
+     */
+    private static int[] without(int[] IDs, int ID)
+    {
+        int index = Arrays.binarySearch(IDs, ID);
+        if (index < 0)
+            return IDs;
+
+        int[] copy = new int[IDs.length - 1];
+        System.arraycopy(IDs, 0, copy, 0, index);
+        System.arraycopy(IDs, index + 1, copy, index, copy.length - index);
+        return copy;
+    }
+
+    /**
+     * Helper Method - Whether bounds overlap too many cells to list the shape cell by cell.
+     */
+    private static boolean isLarge(java.awt.Rectangle bounds)
+    {
+        long across = (long) cell(bounds.x + bounds.width - 1) - cell(bounds.x) + 1;
+        long down = (long) cell(bounds.y + bounds.height - 1) - cell(bounds.y) + 1;
+        return across * down > MAX_CELLS;
+    }
+
+    /**
+     * Helper Method - The cell (along one axis) a coordinate falls in.
+     */
+    private static int cell(int coordinate)
+    {
+        return Math.floorDiv(coordinate, CELL_SIZE);
+    }
+
+    /**
+     * Helper Method - The key for a cell, packing its two indices into one long.
+     */
+    private static long key(int cx, int cy)
+    {
+        return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+    }
+}
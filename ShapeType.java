@@ -0,0 +1,126 @@
+import java.awt.Color;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Shape Type - The registry of shapes that can be sent over the wire, keyed both by their text name and by their
+ * binary type code, with a factory to build each one from its coordinates.
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public enum ShapeType
+{
+    ELLIPSE("Ellipse", 1, 4, 4)
+    {
+        public Shape create(int[] c, int count, Color color)
+        {
+            return new Ellipse(c[0], c[1], c[2], c[3], color);
+        }
+    },
+
+    RECTANGLE("Rectangle", 2, 4, 4)
+    {
+        public Shape create(int[] c, int count, Color color)
+        {
+            return new Rectangle(c[0], c[1], c[2], c[3], color);
+        }
+    },
+
+    SEGMENT("Segment", 3, 4, 4)
+    {
+        public Shape create(int[] c, int count, Color color)
+        {
+            return new Segment(c[0], c[1], c[2], c[3], color);
+        }
+    },
+
+    POLYLINE("Polyline", 4, 2, Integer.MAX_VALUE)
+    {
+        public Shape create(int[] c, int count, Color color)
+        {
+            return new Polyline(c, count, color);
+        }
+    };
+
+    public final String typeName; // The name used in the text protocol.
+    public final byte code; // The type code used in the binary protocol.
+    private final int minCoordinates, maxCoordinates; // How many coordinates the shape takes (always x, y pairs).
+    private final byte[] typeNameBytes; // The name, as ASCII bytes.
+
+    private static final ShapeType[] all = values(); // Every type (values() copies the array on each call).
+    private static final ShapeType[] byCode = new ShapeType[128];
+
+    static
+    {
+        for (ShapeType type : all)
+            byCode[type.code] = type;
+    }
+
+    ShapeType(String typeName, int code, int minCoordinates, int maxCoordinates)
+    {
+        this.typeName = typeName;
+        this.code = (byte) code;
+        this.minCoordinates = minCoordinates;
+        this.maxCoordinates = maxCoordinates;
+        typeNameBytes = typeName.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Builds a shape of this type.
+     *
+     * @param c The coordinates (x1, y1, x2, y2...), of which only the first count are used.
+     * @param count The number of coordinates, already checked with accepts.
+     * @param color The shape's color.
+     */
+    public abstract Shape create(int[] c, int count, Color color);
+
+    /**
+     * Whether this type of shape can be built from the given number of coordinates.
+     */
+    public boolean accepts(int count)
+    {
+        return count >= minCoordinates && count <= maxCoordinates && count % 2 == 0;
+    }
+
+    /**
+     * Looks up a shape type by its binary type code.
+     *
+     * @return The type, or null if there is none.
+     */
+    public static ShapeType forCode(int code)
+    {
+        return code >= 0 && code < byCode.length ? byCode[code] : null;
+    }
+
+    /**
+     * Looks up a shape type by its text name, straight from the bytes of a message.
+     *
+     * @return The type, or null if there is none.
+     */
+    public static ShapeType forName(byte[] text, int offset, int length)
+    {
+        for (ShapeType type : all)
+        {
+            if (Arrays.equals(type.typeNameBytes, 0, type.typeNameBytes.length, text, offset, offset + length))
+                return type;
+        }
+
+        return null;
+    }
+
+    /**
+     * Looks up a shape type by its text name.
+     *
+     * @return The type, or null if there is none.
+     */
+    public static ShapeType forName(String typeName)
+    {
+        for (ShapeType type : all)
+        {
+            if (type.typeName.equals(typeName))
+                return type;
+        }
+
+        return null;
+    }
+}
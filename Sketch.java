@@ -1,17 +1,25 @@
 import java.awt.*;
-import java.util.*;
 
 /**
  * A class used to maintain sketches (the shapes shared among the editors).
- * Stores a list of the shapes used by various server clients.
+ * Stores the shapes used by various server clients, along with a grid of where they are (see ShapeGrid), so that
+ * finding the shape under a click doesn't mean testing every one of them.
+ * The shapes are published as a SketchVersion, which never changes: each change builds the next version from the last
+ * one, and swaps it in (a volatile write), so reading the sketch (painting it, finding the shape under a click, copying
+ * it out to a client) takes no locks, and always sees it between changes, never part way through one. Changes take the
+ * sketch's lock, so only one is made at a time, and several changes that belong together can be made as a batch,
+ * published only once they have all been made.
  *
  * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
  */
 
 public class Sketch
 {
-    // Instance Variables - IDMap to hold the IDs and corresponding shapes, and the current IDIndex.
-    TreeMap<Integer, Shape> IDMap = new TreeMap<>();
+    // Instance Variables - The latest version published, the one being built (the same, unless in a batch), and the
+    // current IDIndex.
+    private volatile SketchVersion version = SketchVersion.EMPTY;
+    private SketchVersion next = SketchVersion.EMPTY;
+    private int batching; // How many batches are being made (one inside another).
     int IDIndex;
 
     public Sketch()
@@ -20,47 +28,105 @@ public class Sketch
     }
 
     /**
-     * Determines which shape is clicked by its ID.
+     * Get Version - The latest version of the sketch, which stays as it is however the sketch changes afterwards.
+     */
+    public SketchVersion getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Determines which shape is clicked by its ID: the topmost one (drawn last) containing the point.
      *
      * @param p The point to consider.
+     * @return The ID, or -1 to indicate that no shape was found.
      */
     public int IDFromClicked(Point p)
     {
-        // Cycling through all the IDs in the IDMap.
-        for (int ID : IDMap.keySet())
+        return version.IDFromClicked(p);
+    }
+
+    /**
+     * Get Shape - A shape, depending on its ID. The shape must not be changed (change the sketch instead).
+     *
+     * @param ID The ID of the shape.
+     * @return The shape, or null if there is no such shape.
+     */
+    public Shape getShape(int ID)
+    {
+        return version.getShape(ID);
+    }
+
+    /**
+     * Get Bounds - The bounds of a shape, depending on its ID (used to repaint only where it is, or was).
+     *
+     * @param ID The ID of the shape.
+     * @return The bounds, or null if there is no such shape.
+     */
+    public java.awt.Rectangle getBounds(int ID)
+    {
+        return version.getBounds(ID);
+    }
+
+    /**
+     * Draw Area - Draws the shapes that overlap an area (in ID order, so later shapes are on top), found through the
+     * grid rather than by asking every shape.
+     *
+     * @param g The graphics to draw with.
+     * @param area The area.
+     * @param excludedID The ID of a shape to leave out (such as one being dragged, drawn separately), or -1.
+     */
+    public void drawArea(Graphics g, java.awt.Rectangle area, int excludedID)
+    {
+        version.drawArea(g, area, excludedID);
+    }
+
+    /**
+     * Batch - Makes several changes, publishing the sketch only once all of them have been made, so nothing reading it
+     * sees it part way through them.
+     *
+     * @param changes Makes the changes (through this sketch's methods).
+     */
+    public synchronized void batch(Runnable changes)
+    {
+        batching += 1;
+        try
         {
-            // If the IDMap shape contains the point, return the ID considered.
-            if (IDMap.get(ID).contains(p.x, p.y))
-                return ID;
+            changes.run();
         }
 
-        // Else, return -1 to indicate that no shape was found.
-        return -1;
+        finally
+        {
+            batching -= 1;
+            publish();
+        }
     }
 
     /**
      * Adds a shape to the map (and to the editor).
      *
-     * @param shape The shape to add.
+     * @param shape The shape to add, which from now on must not be changed.
+     * @return The ID given to the shape.
      */
-    public synchronized void addShape(Shape shape)
+    public synchronized int addShape(Shape shape)
     {
-        // Inputting the shape into the IDMap.
-        IDMap.put(IDIndex, shape);
+        // Inputting the shape into the next version.
+        change(next.with(IDIndex, shape));
         IDIndex += 1;
+        return IDIndex - 1;
     }
 
     /**
      * Adds a shape to the map (and to the editor).
      *
      * @param ID The ID of the shape to add.
-     * @param shape The shape to add.
+     * @param shape The shape to add, which from now on must not be changed.
      */
     public synchronized void addShape(int ID, Shape shape)
     {
-        // Inputting the shape into the ID Map.
-        IDMap.put(ID, shape);
-        IDIndex += 1;
+        // Inputting the shape into the next version, and making sure new shapes are numbered after it.
+        change(next.with(ID, shape));
+        IDIndex = Math.max(IDIndex, ID + 1);
     }
 
     /**
@@ -72,8 +138,35 @@ public class Sketch
      */
     public synchronized void moveShape(int ID, int dx, int dy)
     {
-        if (IDMap.containsKey(ID))
-            IDMap.get(ID).moveBy(dx, dy);
+        Shape shape = next.getShape(ID);
+        if (shape != null)
+        {
+            // Moving a copy, as the shape is still in the versions published already.
+            Shape moved = shape.copy();
+            moved.moveBy(dx, dy);
+            change(next.with(ID, moved));
+        }
+    }
+
+    /**
+     * Append Points - Adds points to the end of a Polyline (a stroke still being drawn), depending on its ID.
+     *
+     * @param ID The ID of the Polyline.
+     * @param coordinates The coordinates of the points (x1, y1, x2, y2...), of which only the first count are used.
+     * @param count The number of coordinates.
+     */
+    public synchronized void appendPoints(int ID, int[] coordinates, int count)
+    {
+        if (next.getShape(ID) instanceof Polyline)
+        {
+            // Adding to a copy that shares the stroke's points (see Polyline.extend), since only the new version will
+            // ever change it again.
+            Polyline stroke = ((Polyline) next.getShape(ID)).extend();
+            for (int i = 0; i + 1 < count; i += 2)
+                stroke.addPoint(coordinates[i], coordinates[i + 1]);
+
+            change(next.with(ID, stroke));
+        }
     }
 
     /**
@@ -84,8 +177,13 @@ public class Sketch
      */
     public synchronized void recolorShape(int ID, Color color)
     {
-        if (IDMap.containsKey(ID))
-            IDMap.get(ID).setColor(color);
+        Shape shape = next.getShape(ID);
+        if (shape != null)
+        {
+            Shape recolored = shape.copy();
+            recolored.setColor(color);
+            change(next.with(ID, recolored));
+        }
     }
 
     /**
@@ -95,6 +193,46 @@ public class Sketch
      */
     public synchronized void deleteShape(int ID)
     {
-        IDMap.remove(ID);
+        change(next.without(ID));
+    }
+
+    /**
+     * Load - Replaces every shape with the shapes of a version (of another sketch, say, loaded from a copy of it).
+     *
+     * @param loaded The version.
+     * @param nextID The ID the next shape added will be given.
+     */
+    public synchronized void load(SketchVersion loaded, int nextID)
+    {
+        change(loaded);
+        IDIndex = nextID;
+    }
+
+    /**
+     * Clears the map, before a fresh copy of the sketch is loaded into it.
+     */
+    public synchronized void clear()
+    {
+        change(SketchVersion.EMPTY);
+        IDIndex = 0;
+    }
+
+    /**
+     * Helper Method - Makes a change: the version built with it is the next one, and is published straight away
+     * (unless in a batch).
+     */
+    private void change(SketchVersion changed)
+    {
+        next = changed;
+        publish();
+    }
+
+    /**
+     * Helper Method - Publishes the next version, unless in a batch (which publishes it once it is over).
+     */
+    private void publish()
+    {
+        if (batching == 0)
+            version = next;
     }
 }
@@ -0,0 +1,75 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * SketchLoadTester - Opens many idle editor connections to a sketch server, then has one of them draw a shape and times
+ * how long it takes for every connection to hear about it. Used to measure how many concurrent connections each server
+ * mode can sustain (see ServerModes.txt). The connections are driven from a single selector, so the tester itself needs
+ * no thread per connection.
+ * For example: java SketchLoadTester localhost 4242 10000
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public class SketchLoadTester
+{
+    public static void main(String[] args) throws Exception
+    {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 4242;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+        Selector selector = Selector.open();
+        List<SocketChannel> channels = new ArrayList<>();
+
+        // Opening the connections, stopping at the first one the server (or the machine) refuses.
+        long start = System.nanoTime();
+        try
+        {
+            for (int i = 0; i < connections; i += 1)
+            {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ);
+                channels.add(channel);
+            }
+        }
+
+        catch (IOException e)
+        {
+            System.err.println("Connection " + channels.size() + " failed: " + e.getMessage());
+        }
+
+        System.out.println("Connected " + channels.size() + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+        Thread.sleep(2000); // Let the server finish setting up the last of them.
+
+        // Drawing one shape, and waiting for every connection to receive the broadcast.
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        Set<SelectableChannel> heard = new HashSet<>();
+        start = System.nanoTime();
+        channels.get(0).write(ByteBuffer.wrap("ADD Rectangle 1 1 10 10 -16777216\n".getBytes(StandardCharsets.UTF_8)));
+
+        while (heard.size() < channels.size() && selector.select(10000) > 0)
+        {
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext())
+            {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                buffer.clear();
+                if (((SocketChannel) key.channel()).read(buffer) > 0)
+                    heard.add(key.channel());
+            }
+        }
+
+        System.out.println("Broadcast reached " + heard.size() + "/" + channels.size() + " in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+
+        for (SocketChannel channel : channels)
+            channel.close();
+    }
+}
@@ -1,10 +1,23 @@
 import java.net.*;
-import java.util.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 /**
  * Sketch Server - Used to handle sketches: getting requests from the clients, updating the overall state, and passing
  * them on to the clients.
+ * The server holds any number of independent sketches, in rooms (see SketchServerRoom), each with its own clients, IDs,
+ * log and sequencer. A client picks its room in its HELLO, and rooms are opened (and their logs replayed) the first time
+ * anyone asks for them. The ticks, MOVE flushes, log syncs and checkpoints of all the rooms share one small pool of
+ * worker threads, and each room's sequencer is a virtual thread, so a server with many rooms doesn't need (platform)
+ * threads for each.
+ * A server can also follow another (the primary, see SketchServerUpstream): each of its rooms keeps a copy of the same
+ * room on the primary, changed only by the primary's changes, and serves its own clients from it (forwarding their
+ * changes to the primary), so the clients can be spread over several servers. If the primary dies, the follower is
+ * promoted, and carries on as a primary itself. For example, on one machine:
+ *              java SketchServer --port 4242
+ *              java SketchServer --port 4243 --follow localhost:4242 --failover 3000
+ *              java SketchServer --port 4244 --follow localhost:4242,localhost:4243 --failover 0
  *
  * @author Chris Bailey-Kellogg, Dartmouth CS 10, Fall 2012
  * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
@@ -12,66 +25,216 @@ import java.io.*;
 public class SketchServer
 {
     private ServerSocket listen; // For Accepting Connections
-    private ArrayList<SketchServerCommunicator> communicators; // All the connections with clients.
-    private Sketch sketch; // The state of the world.
+    private ConcurrentHashMap<String, SketchServerRoom> rooms; // The rooms opened so far, by name.
+    private SketchServerConfig config; // Startup settings.
+    private SketchServerStats stats; // Counters for the messages sent out.
+    private ScheduledExecutorService workers; // Runs the timed and background work of every room.
+    private volatile boolean following; // Whether the rooms follow a primary (until promoted).
 
     public SketchServer(ServerSocket listen)
+    {
+        this(listen, new SketchServerConfig());
+    }
+
+    public SketchServer(ServerSocket listen, SketchServerConfig config)
     {
         this.listen = listen;
-        sketch = new Sketch();
-        communicators = new ArrayList<>();
+        this.config = config;
+        stats = new SketchServerStats();
+        workers = Executors.newScheduledThreadPool(config.workers,
+                Thread.ofPlatform().name("SketchServerWorker-", 0).daemon(true).factory());
+        following = config.follow != null;
+        rooms = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Opens the default room, which is always there, for the clients that don't ask for one. To be called before
+     * accepting any connections.
+     */
+    public void start()
+    {
+        SketchServerRoom room = new SketchServerRoom("", this);
+        room.start();
+        if (following)
+            room.follow(config.follow);
+
+        rooms.put("", room);
     }
 
-    public Sketch getSketch()
+    public SketchServerConfig getConfig()
     {
-        return sketch;
+        return config;
+    }
+
+    public SketchServerStats getStats()
+    {
+        return stats;
+    }
+
+    public ScheduledExecutorService getWorkers()
+    {
+        return workers;
     }
 
     /**
-     * Get Connections - The usual loop of accepting connections and firing off new threads to handle them.
+     * The default room (named ""), which every client starts out in.
      */
-    public void getConnections() throws IOException
+    public SketchServerRoom getRoom()
     {
-        System.out.println("Server ready for connections.");
+        return rooms.get("");
+    }
 
-        while (true)
+    /**
+     * Get Room - A room by name, opening it (and replaying its log, if logging) if nobody has asked for it yet.
+     * Opening is done under a lock, so that two clients asking for the same new room at once end up in the same one;
+     * rooms already open are found without it.
+     *
+     * @param name The room's name (letters, digits, '-' and '_').
+     */
+    public SketchServerRoom getRoom(String name) throws IOException
+    {
+        SketchServerRoom room = rooms.get(name);
+        if (room != null)
+            return room;
+
+        if (!SketchServerRoom.isValidName(name))
+            throw new IllegalArgumentException("Invalid room name: " + name);
+
+        synchronized (rooms)
+        {
+            room = rooms.get(name);
+            if (room == null)
+            {
+                room = new SketchServerRoom(name, this);
+                room.start();
+                if (config.logFile != null)
+                    room.openLog(new File(config.logFile + ".room-" + name));
+
+                if (following)
+                    room.follow(config.follow);
+
+                rooms.put(name, room);
+                System.out.println("Opened room " + name + " (" + rooms.size() + " rooms)");
+            }
+
+            return room;
+        }
+    }
+
+    /**
+     * Promotes the server from following the primary to being a primary itself (every room, and any opened from now
+     * on). Done under the same lock as opening a room, so no room opened meanwhile is left following.
+     */
+    public void promote()
+    {
+        synchronized (rooms)
         {
-            SketchServerCommunicator communicator = new SketchServerCommunicator(listen.accept(), this);
-            communicator.setDaemon(true);
-            communicator.start();
-            addCommunicator(communicator);
+            if (!following)
+                return;
+
+            following = false;
+            for (SketchServerRoom room : rooms.values())
+                room.promote();
         }
+
+        System.out.println("Promoted to primary.");
     }
 
     /**
-     * Adds the communicator to the list of current communicators.
+     * Creates the outbound queue for a new connection, sized and with the slow consumer policy from the config.
      */
-    public synchronized void addCommunicator(SketchServerCommunicator communicator)
+    public OutboundQueue newOutboundQueue()
     {
-        communicators.add(communicator);
+        return new OutboundQueue(config.queueCapacity, config.slowConsumerPolicy, stats);
     }
 
     /**
-     * Removes the communicator from the list of current communicators.
+     * Prints the stats every so often, on the workers.
+     *
+     * @param seconds How often to print them.
      */
-    public synchronized void removeCommunicator(SketchServerCommunicator communicator)
+    public void printStats(int seconds)
     {
-        communicators.remove(communicator);
+        workers.scheduleAtFixedRate(() -> System.out.println("Stats: " + stats), seconds, seconds, TimeUnit.SECONDS);
     }
 
     /**
-     * Sends the message from the one communicator to all (including the originator).
+     * Get Connections - The usual loop of accepting connections and firing off new threads to handle them (a reader
+     * and a writer for each).
+     *
+     * @param virtual Whether to run each communicator on a virtual thread, rather than a platform daemon thread.
      */
-    public synchronized void broadcast(String msg)
+    public void getConnections(boolean virtual) throws IOException
     {
-        for (SketchServerCommunicator communicator : communicators)
+        ThreadFactory threads = virtual
+                ? Thread.ofVirtual().name("SketchServerCommunicator-", 0).factory()
+                : Thread.ofPlatform().name("SketchServerCommunicator-", 0).daemon(true).factory();
+
+        System.out.println("Server ready for connections (" + (virtual ? "virtual" : "platform") + " threads).");
+
+        while (true)
         {
-            communicator.send(msg);
+            SketchServerCommunicator communicator = new SketchServerCommunicator(listen.accept(), this, threads);
+            threads.newThread(communicator).start();
         }
     }
 
+    /**
+     * Get Channel Connections - Accepts connections and spreads them (round robin) over a fixed number of selector
+     * event loops, instead of firing off a new thread for each. The server socket must have been opened through a
+     * ServerSocketChannel.
+     *
+     * @param loops The number of event loops (and so threads) to service the clients with.
+     */
+    public void getChannelConnections(int loops) throws IOException
+    {
+        ServerSocketChannel channel = listen.getChannel();
+        if (channel == null)
+            throw new IllegalStateException("Server socket was not opened through a channel.");
+
+        // Starting up the event loops.
+        SketchServerEventLoop[] eventLoops = new SketchServerEventLoop[loops];
+        for (int i = 0; i < loops; i += 1)
+        {
+            eventLoops[i] = new SketchServerEventLoop(this);
+
+            Thread thread = new Thread(eventLoops[i], "SketchServerEventLoop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        System.out.println("Server ready for connections (" + loops + " event loops).");
+
+        // The accepting channel stays in blocking mode; only the client channels are serviced by the selectors.
+        for (int next = 0; true; next = (next + 1) % loops)
+            eventLoops[next].register(channel.accept());
+    }
+
     public static void main(String[] args) throws Exception
     {
-        new SketchServer(new ServerSocket(4242)).getConnections();
+        SketchServerConfig config = SketchServerConfig.parse(args);
+
+        ServerSocket listen;
+        if (config.mode == SketchServerConfig.Mode.NIO)
+        {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            channel.bind(new InetSocketAddress(config.port), config.backlog);
+            listen = channel.socket();
+        }
+
+        else
+            listen = new ServerSocket(config.port, config.backlog);
+
+        SketchServer server = new SketchServer(listen, config);
+        server.start();
+        if (config.logFile != null)
+            server.getRoom().openLog(new File(config.logFile));
+        if (config.statsInterval > 0)
+            server.printStats(config.statsInterval);
+
+        if (config.mode == SketchServerConfig.Mode.NIO)
+            server.getChannelConnections(config.loops);
+        else
+            server.getConnections(config.mode == SketchServerConfig.Mode.VIRTUAL);
     }
 }
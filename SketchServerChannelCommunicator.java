@@ -0,0 +1,483 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sketch Server Channel Communicator - Handles communication between the server and one client whose (non-blocking)
+ * socket channel is serviced by a selector event loop rather than a thread of its own. The event loop is also the
+ * writer that drains the client's outbound queue.
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public class SketchServerChannelCommunicator implements ClientConnection
+{
+    private SocketChannel channel; // To Talk With Client
+    private SelectionKey key; // Registration With The Event Loop's Selector
+    private SketchServerEventLoop loop; // Servicing This Client
+    private SketchServer server; // Handling Communication For
+    private SketchServerHandshake handshake; // The client's room and session.
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(8192); // From Client (grows to fit the longest message)
+    private boolean paused; // Whether reading has stopped until the room's sequencer has room (see read).
+    private OutboundQueue queue; // Messages waiting to be written to the client.
+    private ByteBuffer pending; // Bytes taken from the queue but not yet written.
+    private ByteArrayOutputStream batch = new ByteArrayOutputStream(); // For gathering messages into one write.
+    private AtomicBoolean writePending = new AtomicBoolean(false); // Whether the event loop has been asked to write.
+
+    // Handshake - A line for the writer to send (as text) ahead of the queued messages, and the format written in (the
+    // rest is in the handshake).
+    private String control;
+    private boolean binaryOut;
+    private MessageDecoder decoder = new MessageDecoder();
+    private SketchServerSnapshot snapshot; // The copy of the sketch being written out (if any).
+
+    // Resync - Whether a resync has been handed to the room's sequencer (and whether it is to be thrown away, as the
+    // client has started over since), and, once the sequencer has taken it, the copy of the sketch it took (if any).
+    private boolean resyncing, stale;
+    private volatile boolean resyncTaken;
+    private volatile SketchServerSnapshot taken;
+
+    // Resume - Where the client is to pick up from (until the resync is taken), whether the changes sent to it are
+    // numbered, and the last change it has.
+    private long resume = -1;
+    private boolean numbered;
+    private long through = -1; // -1 if not known
+
+    public SketchServerChannelCommunicator(SocketChannel channel, SketchServerEventLoop loop, SketchServer server)
+    {
+        this.channel = channel;
+        this.loop = loop;
+        this.server = server;
+        queue = server.newOutboundQueue();
+    }
+
+    public void setKey(SelectionKey key)
+    {
+        this.key = key;
+    }
+
+    /**
+     * Offers the client the binary protocol and tells it the current state of the world, once it has been registered.
+     * Called on the event loop thread.
+     */
+    public void start() throws IOException
+    {
+        // Starting out in the default room.
+        handshake = new SketchServerHandshake(server, this);
+        handshake.start();
+
+        // Joining the room before the copy of the sketch is taken (by the flush), so no change falls between the two.
+        control = Handshake.offer(server.getConfig().binary);
+        queue.requestResync();
+        handshake.getRoom().addCommunicator(this);
+        writePending.set(true);
+        flush();
+    }
+
+    /**
+     * Sends a message to the client. Safe to call from any thread; the message is queued and written out by the event
+     * loop when the channel is ready for it.
+     */
+    public void send(WireMessage message)
+    {
+        queue.offer(message);
+
+        // Only one write request needs to be outstanding at a time.
+        if (writePending.compareAndSet(false, true))
+            loop.requestWrite(this);
+    }
+
+    /**
+     * Starts the client over from a fresh copy of the sketch. Safe to call from any thread; the event loop takes it
+     * when it next writes.
+     */
+    public void resync()
+    {
+        queue.requestResync();
+
+        if (writePending.compareAndSet(false, true))
+            loop.requestWrite(this);
+    }
+
+    /**
+     * Reads whatever the client has sent and handles every complete message (a line, or a frame once the client has
+     * switched to binary). Called on the event loop thread.
+     * If the room's sequencer is full, the rest are left in the buffer, and the client isn't read from again until the
+     * sequencer has room (when the event loop is asked to read again, and picks up with what was left), so a flood of
+     * changes slows the client down rather than the event loop.
+     */
+    public void read() throws IOException
+    {
+        if (paused)
+        {
+            paused = false;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+
+        else if (channel.read(readBuffer) < 0)
+        {
+            close();
+            return;
+        }
+
+        readBuffer.flip();
+
+        while (isOpen() && (handshake.isBinaryIn() ? readFrame() : readLine()))
+        {
+            // Each pass handles one message, if the room has room for its changes.
+            if (!handshake.getRoom().hasRoom(() -> loop.requestRead(this)))
+            {
+                paused = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                break;
+            }
+        }
+
+        readBuffer.compact();
+        if (paused)
+            return;
+
+        // Making room for a message longer than the buffer.
+        if (!readBuffer.hasRemaining())
+        {
+            if (readBuffer.capacity() >= BinaryProtocol.MAX_FRAME)
+                throw new IOException("Message too long");
+
+            ByteBuffer bigger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            bigger.put(readBuffer);
+            readBuffer = bigger;
+        }
+    }
+
+    /**
+     * Helper Method - Handles the next text line in the read buffer, if all of it has arrived.
+     *
+     * @return Whether there was a complete line.
+     */
+    private boolean readLine()
+    {
+        int start = readBuffer.position(), end = start;
+        while (end < readBuffer.limit() && readBuffer.get(end) != '\n')
+            end += 1;
+
+        if (end == readBuffer.limit())
+            return false;
+
+        readBuffer.position(end + 1);
+
+        int length = end - start;
+        if (length > 0 && readBuffer.get(end - 1) == '\r')
+            length -= 1;
+
+        // Answering a HELLO (see SketchServerHandshake), with the WELCOME going out ahead of anything queued.
+        // Only a line starting with 'H' can be a HELLO (no operation does), so the rest are never turned into a String.
+        String hello = readBuffer.get(start) == 'H' ? text(start, length) : null;
+        if (hello != null && Handshake.isHello(hello))
+        {
+            control = handshake.answer(hello);
+
+            if (writePending.compareAndSet(false, true))
+                loop.requestWrite(this);
+        }
+
+        else
+        {
+            SketchServerRelay relay = handshake.getRelay();
+            try
+            {
+                if (relay != null && SketchServerRelay.isRelayed(readBuffer.array(), start, length))
+                    relay.handle(readBuffer.array(), start, length, decoder);
+                else
+                    decoder.decodeText(readBuffer.array(), start, length, handshake.getSession());
+            }
+
+            catch (MalformedMessageException e)
+            {
+                System.err.println("Invalid message from client: " + e.getMessage());
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Helper Method - Handles the next binary frame in the read buffer, if all of it has arrived.
+     *
+     * @return Whether there was a complete frame.
+     */
+    private boolean readFrame() throws IOException
+    {
+        int start = readBuffer.position();
+
+        int length;
+        try
+        {
+            length = BinaryProtocol.readLength(readBuffer);
+        }
+
+        catch (IllegalArgumentException e)
+        {
+            throw new IOException(e.getMessage());
+        }
+
+        if (length < 0 || readBuffer.remaining() < length)
+        {
+            readBuffer.position(start);
+            return false;
+        }
+
+        int frameStart = readBuffer.position();
+        readBuffer.position(frameStart + length);
+
+        try
+        {
+            decoder.decodeFrame(readBuffer.array(), frameStart, length, handshake.getSession());
+        }
+
+        catch (MalformedMessageException e)
+        {
+            System.err.println("Invalid message from client: " + e.getMessage());
+        }
+
+        return true;
+    }
+
+    /**
+     * Helper Method - Part of the read buffer, as text.
+     */
+    private String text(int start, int length)
+    {
+        return new String(readBuffer.array(), start, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes as much of the queued output as the channel will take, asking to be told when it can take more if the
+     * socket's send buffer fills up. Called on the event loop thread.
+     */
+    public void flush() throws IOException
+    {
+        while (true)
+        {
+            // Dropping a client that was too slow.
+            if (queue.isClosed())
+            {
+                close();
+                return;
+            }
+
+            while ((pending != null && pending.hasRemaining()) || (pending = nextBatch()) != null)
+            {
+                channel.write(pending);
+
+                // The socket is full, so wait for the selector to say it is writable again.
+                if (pending.hasRemaining())
+                {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            writePending.set(false);
+
+            // A message may have been queued (or a resync taken) after the last check, but before the flag was cleared.
+            if (!hasWork() || !writePending.compareAndSet(false, true))
+                return;
+        }
+    }
+
+    /**
+     * Helper Method - Gathers queued messages (up to about 64 KB) into one buffer, so that a burst of messages goes out
+     * in one write. A copy of the sketch goes out a chunk per buffer, ahead of anything queued.
+     *
+     * @return The bytes to write, or null if there is nothing queued.
+     */
+    private ByteBuffer nextBatch() throws IOException
+    {
+        batch.reset();
+
+        // Handshake lines go out as text, and a WELCOME switches the format for everything after it.
+        if (control != null)
+        {
+            batch.writeBytes(new WireMessage(control).encode(false));
+            if (Handshake.isWelcome(control))
+                welcomed(control);
+
+            control = null;
+        }
+
+        // Falling too far behind (or just connecting) means starting over from a copy of the sketch (a fresh one
+        // replacing any still being written out), taken by the room's sequencer without the event loop waiting for it.
+        if (!resyncing && queue.needsResync())
+            startResync();
+
+        // Writing nothing queued until the resync has been taken, as the changes it leaves queued come after it.
+        if (resyncing)
+        {
+            if (!resyncTaken)
+                return batched();
+
+            SketchServerSnapshot fresh = taken;
+            resyncing = resyncTaken = false;
+            taken = null;
+
+            // Throwing away a resync taken for where the client was before it started over, and taking another.
+            if (stale)
+            {
+                stale = false;
+                queue.requestResync();
+                startResync();
+                return batched();
+            }
+
+            if (fresh != null)
+            {
+                snapshot = fresh;
+                through = -1;
+            }
+        }
+
+        // Writing the copy a chunk at a time, with the changes since it waiting in the queue until it is done.
+        if (snapshot != null)
+        {
+            snapshot.writeChunk(batch, binaryOut);
+            if (snapshot.isDone())
+            {
+                through = snapshot.getVersion();
+                snapshot = null;
+                if (numbered)
+                    writeSeq();
+            }
+
+            return ByteBuffer.wrap(batch.toByteArray());
+        }
+
+        WireMessage message;
+        while (batch.size() < 65536 && (message = queue.poll()) != null)
+        {
+            batch.writeBytes(message.encode(binaryOut));
+            written(message);
+        }
+
+        return batched();
+    }
+
+    /**
+     * Helper Method - The batch, as bytes to write (null if it is empty).
+     */
+    private ByteBuffer batched()
+    {
+        return batch.size() == 0 ? null : ByteBuffer.wrap(batch.toByteArray());
+    }
+
+    /**
+     * Helper Method - Hands the client's pending resync to the room's sequencer, which takes it when it gets to it, and
+     * then has the event loop write again (see tookResync).
+     */
+    private void startResync()
+    {
+        resyncing = true;
+        handshake.getRoom().takeResync(queue, handshake.getSession(), resume, this::tookResync);
+        resume = -1;
+    }
+
+    /**
+     * Helper Method - Keeps the copy of the sketch the room's sequencer took for the resync (null if the client didn't
+     * need one after all), and asks the event loop to write it out. Called on the sequencer.
+     */
+    private void tookResync(SketchServerSnapshot copy)
+    {
+        taken = copy;
+        resyncTaken = true;
+
+        if (writePending.compareAndSet(false, true))
+            loop.requestWrite(this);
+    }
+
+    /**
+     * Helper Method - Whether there is anything for the event loop to write: once a resync has been handed to the
+     * sequencer, only once it has been taken (or the client has been dropped).
+     */
+    private boolean hasWork()
+    {
+        return resyncing ? resyncTaken || queue.isClosed() : queue.hasWork();
+    }
+
+    /**
+     * Helper Method - Switches the format (and numbering) once the WELCOME is in the batch, and starts the client over
+     * (dropping any copy of the old room still being written out), now that everything from here on follows its
+     * WELCOME; or else tells it where it is, if it is numbering.
+     */
+    private void welcomed(String welcome)
+    {
+        binaryOut = Handshake.hasBinary(welcome);
+        numbered = Handshake.getResume(welcome) != null;
+
+        if (handshake.takeRestart())
+        {
+            stale = resyncing;
+            snapshot = null;
+            resume = through = handshake.getResumeFrom();
+            queue.requestResync();
+        }
+
+        else if (numbered && through >= 0)
+            writeSeq();
+    }
+
+    /**
+     * Helper Method - Notes the last change the client has, once a message is in the batch, and tells the client (with
+     * a SEQ) if that isn't just the one it had plus the changes in the message.
+     */
+    private void written(WireMessage message)
+    {
+        long expected = through < 0 ? -1 : through + message.getCount();
+        through = message.getSeq();
+
+        if (numbered && through != expected)
+            writeSeq();
+    }
+
+    /**
+     * Helper Method - Tells the client the last change it has.
+     */
+    private void writeSeq()
+    {
+        batch.writeBytes(new WireMessage("SEQ " + through).encode(binaryOut));
+    }
+
+    /**
+     * Whether the client is still connected.
+     */
+    public boolean isOpen()
+    {
+        return channel.isOpen();
+    }
+
+    /**
+     * Clean Up - Removes self from the room's list so it doesn't broadcast here, and closes the channel.
+     */
+    public void close()
+    {
+        if (!isOpen())
+            return;
+
+        handshake.end();
+
+        queue.close();
+        key.cancel();
+
+        try
+        {
+            channel.close();
+        }
+
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ * Sketch Server Checkpoint - A compact copy of the server sketch as of a version (the number of changes it includes),
+ * so that a restarted server only has to load the shapes that are there now, and replay the changes logged since,
+ * rather than every change ever made (thousands of MOVEs per drag, say). The log before the checkpoint can then be
+ * thrown away (see SketchServerLog).
+ * The file is a small header (a magic number, the version, the next shape ID, and the number of shapes), then an ADD_ID
+ * for each shape, as a binary frame (see BinaryProtocol). Each shape is encoded straight from a version of the sketch
+ * (see Shape.writeTo) into a memory-mapped buffer (mapped a chunk at a time, as the size isn't known until the end), so
+ * no copy of the sketch is ever built up in memory, of a temporary file that replaces the old
+ * checkpoint only once all of it is on the disk, so a crash while writing leaves the old one in place. The directory is
+ * then synced too, so the new checkpoint is there after a crash before the old log is thrown away. It is read back
+ * through a memory-mapped buffer as well.
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public class SketchServerCheckpoint implements MessageHandler
+{
+    private static final int MAGIC = 0x534B4350; // "SKCP"
+    private static final int HEADER_SIZE = 4 + 8 + 4 + 4; // Magic number, version, next ID, number of shapes.
+    private static final int CHUNK_SIZE = 1 << 20; // How much of the file to map at a time, while writing.
+
+    private File file; // Where the checkpoint is kept.
+    private Sketch loading; // The sketch being loaded (while loading only).
+
+    public SketchServerCheckpoint(File file)
+    {
+        this.file = file;
+    }
+
+    public boolean exists()
+    {
+        return file.exists();
+    }
+
+    /**
+     * Writes a checkpoint, replacing the last one.
+     *
+     * @param version The number of changes the copy of the sketch includes.
+     * @param nextID The ID the next shape added will be given (which can be past the last shape, if it was deleted).
+     * @param sketch The copy of the sketch (a version of it, which never changes, so it can be walked with no lock).
+     * @return The size of the checkpoint, in bytes.
+     */
+    public long write(long version, int nextID, SketchVersion sketch) throws IOException
+    {
+        Path temporary = Paths.get(file.getPath() + ".tmp");
+        long size;
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            FrameWriter writer = new FrameWriter(channel);
+            writer.map.putInt(MAGIC).putLong(version).putInt(nextID).putInt(sketch.size());
+
+            // Encoding each shape into the file as it comes (the walk can't throw an IOException, so it is carried out
+            // unchecked).
+            try
+            {
+                sketch.forEach(writer::write);
+            }
+
+            catch (UncheckedIOException e)
+            {
+                throw e.getCause();
+            }
+
+            // Cutting off the rest of the last chunk.
+            writer.map.force();
+            size = writer.start + writer.map.position();
+            channel.truncate(size);
+            channel.force(true);
+        }
+
+        Files.move(temporary, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // Syncing the directory, as the move is only on the disk once the directory is.
+        try (FileChannel directory = FileChannel.open(file.getAbsoluteFile().getParentFile().toPath(),
+                StandardOpenOption.READ))
+        {
+            directory.force(true);
+        }
+
+        return size;
+    }
+
+    /**
+     * Loads the checkpoint into a sketch.
+     *
+     * @param sketch The sketch (empty).
+     * @return The version of the checkpoint (the number of changes it includes).
+     */
+    public long load(Sketch sketch) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (map.remaining() < HEADER_SIZE || map.getInt() != MAGIC)
+                throw new IOException("Not a checkpoint: " + file);
+
+            long version = map.getLong();
+            int nextID = map.getInt(), count = map.getInt();
+
+            // Decoding each frame from the same buffer, straight into the sketch.
+            loading = sketch;
+            MessageDecoder decoder = new MessageDecoder();
+            byte[] frame = new byte[256];
+
+            try
+            {
+                for (int i = 0; i < count; i += 1)
+                {
+                    int length = BinaryProtocol.readLength(map);
+                    if (length < 0 || length > map.remaining())
+                        throw new IOException("Checkpoint cut off: " + file);
+
+                    if (length > frame.length)
+                        frame = new byte[Math.max(length, frame.length * 2)];
+
+                    map.get(frame, 0, length);
+                    decoder.decodeFrame(frame, 0, length, this);
+                }
+            }
+
+            catch (MalformedMessageException e)
+            {
+                throw new IOException("Invalid checkpoint: " + e.getMessage());
+            }
+
+            finally
+            {
+                loading = null;
+            }
+
+            sketch.IDIndex = Math.max(sketch.IDIndex, nextID);
+            return version;
+        }
+    }
+
+    /**
+     * Loading - Adds a shape with its ID.
+     */
+    @Override
+    public void handleAddID(int ID, Shape shape)
+    {
+        loading.addShape(ID, shape);
+    }
+
+    /**
+     * Frame Writer - Encodes the shapes of a checkpoint into the file, mapping the next chunk of it whenever a frame
+     * doesn't fit in the one mapped. Each frame is built in the same buffer (which only grows to fit the biggest
+     * shape), and copied from there straight into the mapped chunk.
+     */
+    private static class FrameWriter
+    {
+        FileChannel channel; // The file being written.
+        MappedByteBuffer map; // The chunk of it mapped.
+        long start; // Where in the file the chunk starts.
+        Frame frame = new Frame(); // The frame being encoded.
+
+        FrameWriter(FileChannel channel) throws IOException
+        {
+            this.channel = channel;
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, CHUNK_SIZE);
+        }
+
+        /**
+         * Writes an ADD_ID for a shape.
+         *
+         * @throws UncheckedIOException If the next chunk couldn't be mapped.
+         */
+        void write(Shape shape, int ID)
+        {
+            frame.reset();
+            frame.write(Operation.ADD_ID.opcode);
+            BinaryProtocol.writeVarint(frame, ID);
+            shape.writeTo(frame);
+
+            int length = frame.size() + 5; // At most, with the frame's length in front.
+            if (length > map.remaining())
+            {
+                try
+                {
+                    map.force();
+                    start += map.position();
+                    map = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.max(CHUNK_SIZE, length));
+                }
+
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            BinaryProtocol.writeVarint(map, frame.size());
+            frame.putTo(map);
+        }
+    }
+
+    /**
+     * Frame - A buffer that can be copied straight into another (with no copy of its own made on the way).
+     */
+    private static class Frame extends ByteArrayOutputStream
+    {
+        void putTo(ByteBuffer out)
+        {
+            out.put(buf, 0, count);
+        }
+    }
+}
@@ -1,32 +1,61 @@
-import java.awt.*;
 import java.io.*;
 import java.net.Socket;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
 
 /**
- * Sketch Server Communicator - Handles communication between the server and one client.
+ * Sketch Server Communicator - Handles communication between the server and one client. The read loop is a plain
+ * Runnable, so the server can run it on either a platform thread or a virtual thread. Messages to the client go
+ * through its outbound queue and are written by a second (writer) thread, so a slow client never holds up a broadcast.
  *
  * @author Chris Bailey-Kellogg, Dartmouth CS 10, Fall 2012, Winter 2014
  * @author Carter Kruse, Dartmouth CS 10, Spring 2022
  */
-public class SketchServerCommunicator extends Thread
+public class SketchServerCommunicator implements Runnable, ClientConnection
 {
     private Socket socket; // To Talk With Client
-    private BufferedReader in; // From Client
-    private PrintWriter out; // To Client
+    private WireReader in; // From Client
+    private OutputStream out; // To Client
     private SketchServer server; // Handling Communication For
+    private SketchServerHandshake handshake; // The client's room and session (answered by the reader).
+    private OutboundQueue queue; // Messages waiting to be written to the client.
+    private ThreadFactory threads; // For starting the writer thread.
 
-    public SketchServerCommunicator(Socket socket, SketchServer server)
+    // Handshake - Lines for the writer to send (as text) ahead of the queued messages, and the format written in (the
+    // rest is in the handshake).
+    private ConcurrentLinkedQueue<String> controls = new ConcurrentLinkedQueue<>();
+    private MessageDecoder decoder = new MessageDecoder(); // Read Side Only
+    private boolean binaryOut; // Write Side Only
+
+    // Resume - Whether the changes sent to the client are numbered, and the last change it has, which the writer tells
+    // it about if they are.
+    private boolean numbered; // Write Side Only
+    private long through = -1; // Write Side Only (-1 if not known)
+
+    public SketchServerCommunicator(Socket socket, SketchServer server, ThreadFactory threads)
     {
         this.socket = socket;
         this.server = server;
+        this.threads = threads;
+        queue = server.newOutboundQueue();
+    }
+
+    /**
+     * Sends a message to the client (or rather, queues it for the writer thread).
+     */
+    public void send(WireMessage message)
+    {
+        // Dropping a slow client right away, since its writer may be stuck in a write that will never finish.
+        if (!queue.offer(message))
+            close();
     }
 
     /**
-     * Sends a message to the client.
+     * Starts the client over from a fresh copy of the sketch (the writer takes it next).
      */
-    public void send(String message)
+    public void resync()
     {
-        out.println(message);
+        queue.requestResync();
     }
 
     /**
@@ -38,147 +67,199 @@ public class SketchServerCommunicator extends Thread
         {
             System.out.println("Someone Connected");
 
-            // Communication Channel
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            // Starting out in the default room.
+            handshake = new SketchServerHandshake(server, this);
+            handshake.start();
+
+            // Communication Channel - No autoflush, the writer flushes whenever it runs out of queued messages.
+            in = new WireReader(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream());
 
-            // Tell the client the current state of the world.
-            for (int ID : server.getSketch().IDMap.keySet())
-                send("ADD_ID " + ID + " " + server.getSketch().IDMap.get(ID));
+            // Offer the client the binary protocol, and tell it the current state of the world (the writer sends both
+            // before anything else).
+            controls.add(Handshake.offer(server.getConfig().binary));
+            queue.requestResync();
+            handshake.getRoom().addCommunicator(this);
+            threads.newThread(this::write).start();
 
             // Keep getting and handling messages from the client.
-            String message;
-            while ((message = in.readLine()) != null)
+            while (handshake.isBinaryIn() ? in.readFrame() : in.readLine())
             {
-                System.out.println("Received: " + message);
-
-                String[] messageParts = message.split(" ");
-                if (messageParts.length < 2)
-                    System.err.println("Invalid message from client.");
-
-                // The first element of the message parts is the command to use.
-                String command = messageParts[0];
+                // System.out.println("Received: " + in.getText());
 
-                if (command.equals("ADD"))
-                    handleAdd(message);
+                // Answering a HELLO (see SketchServerHandshake), with the WELCOME going out ahead of anything queued.
+                if (!handshake.isBinaryIn() && in.startsWith("HELLO "))
+                {
+                    controls.add(handshake.answer(in.getText()));
+                    queue.wake();
+                    continue;
+                }
 
-                if (command.equals("MOVE"))
-                    handleMove(message);
+                // Waiting for the room's sequencer to have room for the message's changes, so a flood of them slows
+                // the client down (the socket fills up) rather than piling up in the sequencer.
+                handshake.getRoom().awaitRoom();
 
-                if (command.equals("RECOLOR"))
-                    handleRecolor(message);
+                SketchServerRelay relay = handshake.getRelay();
+                try
+                {
+                    if (handshake.isBinaryIn())
+                        decoder.decodeFrame(in.getBytes(), 0, in.getLength(), handshake.getSession());
+                    else if (relay != null && SketchServerRelay.isRelayed(in.getBytes(), 0, in.getLength()))
+                        relay.handle(in.getBytes(), 0, in.getLength(), decoder);
+                    else
+                        decoder.decodeText(in.getBytes(), 0, in.getLength(), handshake.getSession());
+                }
 
-                if (command.equals("DELETE"))
-                    handleDelete(message);
+                catch (MalformedMessageException e)
+                {
+                    System.err.println("Invalid message from client: " + e.getMessage());
+                }
             }
-
-            // Clean Up - Note that also remove self from server's list so it doesn't broadcast here.
-            server.removeCommunicator(this);
-            out.close();
-            in.close();
-            socket.close();
         }
 
         catch (IOException e)
         {
-            e.printStackTrace();
+            // The writer closes the socket to drop a slow client, which ends up here.
+            if (!queue.isClosed())
+                e.printStackTrace();
+        }
+
+        catch (UncheckedIOException e)
+        {
+            // The room's log has failed, so the client's changes can't be taken (or acknowledged) any more.
+            System.err.println("Dropping Client: " + e.getMessage());
+        }
+
+        finally
+        {
+            // Clean Up - Note that also remove self from the room's list so it doesn't broadcast here.
+            handshake.end();
+
+            queue.close();
+            close();
         }
     }
 
     /**
-     * Helper Function - Adds a given shape in the server sketch and client sketches.
-     *
-     * @param message The message to pass through the method.
+     * Keeps writing out queued messages until the client is dropped.
      */
-    public synchronized void handleAdd(String message)
+    private void write()
     {
-        // Ensuring the input is appropriate.
-        String[] messageParts = message.split(" ");
-        if (messageParts.length < 7)
-            System.err.println("Invalid message from client.");
+        SketchServerSnapshot snapshot = null; // The copy of the sketch being written out (if any).
+        long resume = -1; // Where the client is to pick up from, until its resync is taken.
 
-        Shape shape = null;
+        try
+        {
+            while (!queue.isClosed())
+            {
+                // Handshake lines go out as text, and a WELCOME switches the format for everything after it.
+                String control;
+                while ((control = controls.poll()) != null)
+                {
+                    out.write(new WireMessage(control).encode(false));
+                    if (!Handshake.isWelcome(control))
+                        continue;
 
-        // Creating a new shape based on the shape type.
-        if (messageParts[1].equals("Ellipse"))
-            shape = new Ellipse(Integer.parseInt(messageParts[2]), Integer.parseInt(messageParts[3]),
-                    Integer.parseInt(messageParts[4]), Integer.parseInt(messageParts[5]), new Color(Integer.parseInt(messageParts[6])));
+                    binaryOut = Handshake.hasBinary(control);
+                    numbered = Handshake.getResume(control) != null;
 
-        if (messageParts[1].equals("Rectangle"))
-            shape = new Rectangle(Integer.parseInt(messageParts[2]), Integer.parseInt(messageParts[3]),
-                    Integer.parseInt(messageParts[4]), Integer.parseInt(messageParts[5]), new Color(Integer.parseInt(messageParts[6])));
+                    // Starting the client over (dropping any copy of the old room still being written out), now that
+                    // everything from here on follows its WELCOME; or else telling it where it is, if it is numbering.
+                    if (handshake.takeRestart())
+                    {
+                        snapshot = null;
+                        resume = through = handshake.getResumeFrom();
+                        queue.requestResync();
+                    }
 
-        if (messageParts[1].equals("Segment"))
-            shape = new Segment(Integer.parseInt(messageParts[2]), Integer.parseInt(messageParts[3]),
-                    Integer.parseInt(messageParts[4]), Integer.parseInt(messageParts[5]), new Color(Integer.parseInt(messageParts[6])));
+                    else if (numbered && through >= 0)
+                        writeSeq();
+                }
 
-        if (messageParts[1].equals("Polyline"))
-        {
-            shape = new Polyline(Integer.parseInt(messageParts[2]), Integer.parseInt(messageParts[3]), new Color(Integer.parseInt(messageParts[messageParts.length - 1])));
+                // Falling too far behind (or just connecting) means starting over from a copy of the sketch (a fresh
+                // one replacing any still being written out).
+                SketchServerSnapshot fresh = handshake.getRoom().takeResync(queue, handshake.getSession(), resume);
+                resume = -1;
+                if (fresh != null)
+                {
+                    snapshot = fresh;
+                    through = -1;
+                }
 
-            for (int i = 4; i < messageParts.length - 1; i += 2)
-            {
-                ((Polyline) shape).addPoint(Integer.parseInt(messageParts[i]), Integer.parseInt(messageParts[i + 1]));
+                // Writing the copy a chunk at a time, with the changes since it waiting in the queue until it is done.
+                if (snapshot != null)
+                {
+                    snapshot.writeChunk(out, binaryOut);
+                    if (snapshot.isDone())
+                    {
+                        through = snapshot.getVersion();
+                        snapshot = null;
+                        if (numbered)
+                            writeSeq();
+                    }
+
+                    continue;
+                }
+
+                // Only flushing once the queue runs dry, so a burst of messages goes out together.
+                WireMessage message = queue.poll();
+                if (message == null)
+                {
+                    out.flush();
+                    message = queue.take(1000);
+                }
+
+                if (message != null)
+                {
+                    out.write(message.encode(binaryOut));
+                    written(message);
+                }
             }
         }
 
-        // Checking to make sure the shape is present.
-        if (shape != null)
+        catch (IOException | InterruptedException e)
         {
-            // Adding the shape to the server sketch and broadcasting the message.
-            server.getSketch().addShape(shape);
-            server.broadcast("ADD " + shape);
+            queue.close();
         }
+
+        // Dropping the connection also wakes up the reader.
+        close();
     }
 
     /**
-     * Helper Function - Moves a given shape in the server sketch and client sketches.
-     *
-     * @param message The message to pass through the method.
+     * Helper Method - Notes the last change the client has, once a message has been written, and tells the client
+     * (with a SEQ) if that isn't just the one it had plus the changes in the message.
      */
-    public synchronized void handleMove(String message)
+    private void written(WireMessage message) throws IOException
     {
+        long expected = through < 0 ? -1 : through + message.getCount();
+        through = message.getSeq();
 
-        String[] messageParts = message.split(" ");
-        if (messageParts.length < 4)
-            System.err.println("Invalid message from client.");
-
-        // Modifying the server sketch and broadcasting the message.
-        server.getSketch().moveShape(Integer.parseInt(messageParts[1]), Integer.parseInt(messageParts[2]), Integer.parseInt(messageParts[3]));
-        server.broadcast(message);
+        if (numbered && through != expected)
+            writeSeq();
     }
 
     /**
-     * Helper Function - Recolors a given shape in the server sketch and client sketches.
-     *
-     * @param message The message to pass through the method.
+     * Helper Method - Tells the client the last change it has.
      */
-    public synchronized void handleRecolor(String message)
+    private void writeSeq() throws IOException
     {
-        // Ensuring the input is appropriate.
-        String[] messageParts = message.split(" ");
-        if (messageParts.length < 3)
-            System.err.println("Invalid message from client.");
-
-        // Modifying the server sketch and broadcasting the message.
-        server.getSketch().recolorShape(Integer.parseInt(messageParts[1]), new Color(Integer.parseInt(messageParts[2])));
-        server.broadcast(message);
+        out.write(new WireMessage("SEQ " + through).encode(binaryOut));
     }
 
     /**
-     * Helper Function - Deletes a given shape in the server sketch and client sketches.
-     *
-     * @param message The message to pass through the method.
+     * Helper Method - Closes the socket (and so both directions of the connection).
      */
-    public synchronized void handleDelete(String message)
+    private void close()
     {
-        // Ensuring the input is appropriate.
-        String[] messageParts = message.split(" ");
-        if (messageParts.length < 2)
-            System.err.println("Invalid message from client.");
-
-        // Modifying the server sketch and broadcasting the message.
-        server.getSketch().deleteShape(Integer.parseInt(messageParts[1]));
-        server.broadcast(message);
+        try
+        {
+            socket.close();
+        }
+
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
     }
 }
@@ -0,0 +1,118 @@
+/**
+ * Sketch Server Config - The startup settings for the sketch server, read from the command line.
+ * For example: java SketchServer --mode nio --loops 4 (or --mode virtual, or --mode thread, the default)
+ *              java SketchServer --queue 1024 --slow coalesce --stats 10 (slow consumers: resync, coalesce, disconnect)
+ *              java SketchServer --coalesce 30 (add up each shape's MOVEs for 30 ms before broadcasting them)
+ *              java SketchServer --simplify 1.5 (let freehand strokes stray up to 1.5 pixels, for fewer points)
+ *              java SketchServer --tick 10 (broadcast everything from each 10 ms tick together, as one BATCH)
+ *              java SketchServer --log sketch.log --fsync 10 (keep the sketch across restarts, fsyncing every 10 ms; or
+ *              --fsync always, before anyone hears of each change, or --fsync os, leaving it to the OS)
+ *              java SketchServer --log sketch.log --checkpoint 100000 (write the sketch out and start a new log every
+ *              100000 changes, so restarting doesn't replay them all)
+ *              java SketchServer --history 10000 (keep each room's last 10000 changes, for clients that reconnect)
+ *              java SketchServer --sequencer 65536 (let up to 65536 changes wait for each room's sequencer before the
+ *              clients sending more have to wait)
+ *              java SketchServer --port 4243 --follow localhost:4242 --failover 3000 (follow the server on port 4242,
+ *              and take over from it if it can't be reached for 3 seconds; several addresses, separated by commas, are
+ *              tried in turn)
+ *              java SketchServer --workers 2 (run the ticks, MOVE flushes, log syncs and checkpoints of all the rooms
+ *              on 2 threads)
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public class SketchServerConfig
+{
+    // How the client sockets are serviced.
+    public enum Mode
+    {
+        THREAD, // One communicator thread per client, blocking on readLine().
+        VIRTUAL, // One communicator virtual thread per client, so blocking costs almost nothing.
+        NIO // A small fixed pool of selector event loops shared by all the clients.
+    }
+
+    public int port = 4242; // Port to listen on.
+    public int backlog = 1024; // Connections the OS may queue up before they are accepted (the default is only 50).
+    public Mode mode = Mode.THREAD; // How the client sockets are serviced.
+    public int loops = Runtime.getRuntime().availableProcessors(); // Number of event loops (NIO mode only).
+    public int queueCapacity = 4096; // Messages that may wait for one client before it counts as a slow consumer.
+    public OutboundQueue.Policy slowConsumerPolicy = OutboundQueue.Policy.RESYNC; // What to do with a slow consumer.
+    public boolean binary = true; // Whether to offer the binary protocol to editors that ask for it.
+    public int coalesceWindow = 0; // How long to add up each shape's MOVEs for, in milliseconds (0 for not at all).
+    public int tickInterval = 0; // How long to batch up broadcasts for, in milliseconds (0 to send each at once).
+    public double strokeTolerance = 1.0; // How far (in pixels) simplifying a freehand stroke may move it (0 for never).
+    public int statsInterval = 0; // How often to print the stats, in seconds (0 for never).
+    public String logFile = null; // Where to log every change, so a restarted server keeps the sketch (null for no log).
+    public SketchServerLog.Sync logSync = SketchServerLog.Sync.INTERVAL; // When to fsync the log.
+    public int logSyncInterval = 10; // How often to fsync the log, in milliseconds (INTERVAL only).
+    public int checkpointInterval = 100000; // How many changes to log between checkpoints (0 for never).
+    public int historySize = 10000; // How many of each room's most recent changes to keep for reconnecting clients.
+    public int sequencerCapacity = 65536; // Changes that may wait to be applied to a room's sketch (see the sequencer).
+    public String[] follow = null; // The primary to follow ("host:port"), and any others to try (null for none).
+    public int failover = 3000; // How long the primary can be out of reach before taking over, in ms (0 for never).
+    public int workers = Runtime.getRuntime().availableProcessors(); // Threads for the timed work of all the rooms.
+
+    /**
+     * Parses the command line arguments, leaving the defaults in place for anything not given.
+     *
+     * @param args The command line arguments, as "--name value" pairs.
+     */
+    public static SketchServerConfig parse(String[] args)
+    {
+        SketchServerConfig config = new SketchServerConfig();
+
+        for (int i = 0; i < args.length; i += 2)
+        {
+            if (i + 1 >= args.length)
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+
+            String name = args[i], value = args[i + 1];
+
+            switch (name)
+            {
+                case "--port" -> config.port = Integer.parseInt(value);
+                case "--backlog" -> config.backlog = Integer.parseInt(value);
+                case "--mode" -> config.mode = Mode.valueOf(value.toUpperCase());
+                case "--loops" -> config.loops = Math.max(1, Integer.parseInt(value));
+                case "--queue" -> config.queueCapacity = Math.max(1, Integer.parseInt(value));
+                case "--slow" -> config.slowConsumerPolicy = OutboundQueue.Policy.valueOf(value.toUpperCase());
+                case "--binary" -> config.binary = Boolean.parseBoolean(value);
+                case "--coalesce" -> config.coalesceWindow = Math.max(0, Integer.parseInt(value));
+                case "--tick" -> config.tickInterval = Math.max(0, Integer.parseInt(value));
+                case "--simplify" -> config.strokeTolerance = Math.max(0, Double.parseDouble(value));
+                case "--stats" -> config.statsInterval = Integer.parseInt(value);
+                case "--log" -> config.logFile = value;
+                case "--checkpoint" -> config.checkpointInterval = Math.max(0, Integer.parseInt(value));
+                case "--history" -> config.historySize = Math.max(0, Integer.parseInt(value));
+                case "--sequencer" -> config.sequencerCapacity = Math.max(1, Integer.parseInt(value));
+                case "--follow" -> config.follow = value.split(",");
+                case "--failover" -> config.failover = Math.max(0, Integer.parseInt(value));
+                case "--workers" -> config.workers = Math.max(1, Integer.parseInt(value));
+                case "--fsync" ->
+                {
+                    // Either a policy by name, or how often (in milliseconds) to fsync.
+                    if (value.equalsIgnoreCase("always") || value.equalsIgnoreCase("os"))
+                        config.logSync = SketchServerLog.Sync.valueOf(value.toUpperCase());
+
+                    else
+                    {
+                        config.logSync = SketchServerLog.Sync.INTERVAL;
+                        config.logSyncInterval = Math.max(1, Integer.parseInt(value));
+                    }
+                }
+                default -> throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+
+        // A follower's changes are the primary's (and are logged there).
+        if (config.follow != null && config.logFile != null)
+            throw new IllegalArgumentException("--log can't be used with --follow");
+
+        for (String primary : config.follow == null ? new String[0] : config.follow)
+        {
+            if (primary.lastIndexOf(':') <= 0)
+                throw new IllegalArgumentException("Not host:port: " + primary);
+        }
+
+        return config;
+    }
+}
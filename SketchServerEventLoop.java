@@ -0,0 +1,152 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Sketch Server Event Loop - One selector, on one thread, servicing the non-blocking channels of many clients.
+ * The server runs a small fixed number of these and hands each accepted connection to one of them.
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public class SketchServerEventLoop implements Runnable
+{
+    private Selector selector; // Watches all the channels on this loop.
+    private SketchServer server; // Handling Communication For
+
+    // Work handed to the loop from other threads, picked up after the selector wakes.
+    private ConcurrentLinkedQueue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+    private ConcurrentLinkedQueue<SketchServerChannelCommunicator> writeRequests = new ConcurrentLinkedQueue<>();
+    private ConcurrentLinkedQueue<SketchServerChannelCommunicator> readRequests = new ConcurrentLinkedQueue<>();
+
+    public SketchServerEventLoop(SketchServer server) throws IOException
+    {
+        this.server = server;
+        selector = Selector.open();
+    }
+
+    /**
+     * Hands a newly accepted connection to this loop.
+     *
+     * @param channel The client's channel.
+     */
+    public void register(SocketChannel channel)
+    {
+        newChannels.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to write out the queued messages of one of its clients.
+     *
+     * @param communicator The client with messages to send.
+     */
+    public void requestWrite(SketchServerChannelCommunicator communicator)
+    {
+        writeRequests.add(communicator);
+        selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to pick up reading from one of its clients again, once its room's sequencer has room for the
+     * client's changes (see SketchServerChannelCommunicator.read).
+     *
+     * @param communicator The client that stopped being read from.
+     */
+    public void requestRead(SketchServerChannelCommunicator communicator)
+    {
+        readRequests.add(communicator);
+        selector.wakeup();
+    }
+
+    /**
+     * Keeps waiting for channels to become ready and servicing them.
+     */
+    public void run()
+    {
+        while (true)
+        {
+            try
+            {
+                selector.select();
+
+                // Setting up the connections accepted since the last pass.
+                SocketChannel channel;
+                while ((channel = newChannels.poll()) != null)
+                    accept(channel);
+
+                // Writing out the messages queued since the last pass.
+                SketchServerChannelCommunicator communicator;
+                while ((communicator = writeRequests.poll()) != null)
+                    service(communicator, SelectionKey.OP_WRITE);
+
+                // Reading again from the clients that were waiting for room in their room's sequencer.
+                while ((communicator = readRequests.poll()) != null)
+                {
+                    if (communicator.isOpen())
+                        service(communicator, SelectionKey.OP_READ);
+                }
+
+                // Servicing the channels that are ready.
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (key.isValid())
+                        service((SketchServerChannelCommunicator) key.attachment(), key.readyOps());
+                }
+            }
+
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Helper Method - Registers a new client with the selector and tells it the current state of the world.
+     */
+    private void accept(SocketChannel channel)
+    {
+        System.out.println("Someone Connected");
+
+        try
+        {
+            channel.configureBlocking(false);
+
+            SketchServerChannelCommunicator communicator = new SketchServerChannelCommunicator(channel, this, server);
+            communicator.setKey(channel.register(selector, SelectionKey.OP_READ, communicator));
+            communicator.start();
+        }
+
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Helper Method - Reads from and/or writes to a client, dropping it if the connection has failed (or the room's log
+     * has, so its changes can't be taken any more).
+     */
+    private void service(SketchServerChannelCommunicator communicator, int ops)
+    {
+        try
+        {
+            if ((ops & SelectionKey.OP_READ) != 0)
+                communicator.read();
+
+            if ((ops & SelectionKey.OP_WRITE) != 0 && communicator.isOpen())
+                communicator.flush();
+        }
+
+        catch (IOException | UncheckedIOException | CancelledKeyException e)
+        {
+            communicator.close();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+import java.io.IOException;
+
+/**
+ * Sketch Server Handshake - Answers a client's HELLOs, the same way in every server mode, and keeps where they leave
+ * it: its room, its session, and whether it is to start over once its WELCOME has gone out.
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public class SketchServerHandshake
+{
+    private SketchServer server; // The server the client is connected to.
+    private ClientConnection connection; // The client's connection.
+    private volatile SketchServerRoom room; // The room the client is in.
+    private volatile SketchServerSession session; // The client's stroke in progress (if any), and its ACKs.
+    private SketchServerRelay relay; // The sessions of a follower's clients, if the client is a follower.
+    private boolean binaryIn; // Whether the client sends binary (after its HELLO).
+
+    // Resume - Whether the client is to start over once its WELCOME has gone out, and from where (-1 for a copy of the
+    // sketch), set before the WELCOME is handed to the writer.
+    private volatile boolean restart;
+    private volatile long resumeFrom = -1;
+
+    public SketchServerHandshake(SketchServer server, ClientConnection connection)
+    {
+        this.server = server;
+        this.connection = connection;
+    }
+
+    /**
+     * Starts the client out in the default room (before it has said anything). The connection still has to join the
+     * room's communicators, once it is ready for the room's changes.
+     */
+    public void start()
+    {
+        room = server.getRoom();
+        session = new SketchServerSession(room, connection);
+    }
+
+    /**
+     * Answers the client's HELLO, moving it to the room it asks for (if any), picking up where it left off (if it asks
+     * to, and the changes it missed are still kept), and acknowledging its changes (if it asks to, unless the room is
+     * following another server, where they aren't applied). A follower server's clients each get a session of their
+     * own (see SketchServerRelay).
+     * The client sends binary right after its HELLO if it asked for it, and the server does the same after its
+     * WELCOME.
+     *
+     * @param hello The client's HELLO.
+     * @return The WELCOME, for the writer to send (as text) ahead of anything else.
+     */
+    public String answer(String hello)
+    {
+        binaryIn = server.getConfig().binary && Handshake.hasBinary(hello);
+        boolean moved = joinRoom(Handshake.getRoom(hello));
+
+        String resume = Handshake.getResume(hello);
+        resumeFrom = resume == null || resume.isEmpty() ? -1 : room.getResumePoint(resume);
+        restart = moved || (resume != null && !resume.isEmpty());
+
+        boolean ack = Handshake.hasAck(hello) && !room.isFollowing();
+        if (ack)
+            session.startAcking();
+
+        if (Handshake.hasFollower(hello))
+            relay = new SketchServerRelay(room, connection);
+
+        return Handshake.welcome(binaryIn, resume == null ? -1 : room.getEpoch(), ack);
+    }
+
+    /**
+     * Whether the client is to start over, now that its WELCOME has gone out (only true once per HELLO). It starts over
+     * from getResumeFrom.
+     */
+    public boolean takeRestart()
+    {
+        if (!restart)
+            return false;
+
+        restart = false;
+        return true;
+    }
+
+    /**
+     * Where the client is to pick up from when it starts over (-1 for a copy of the sketch).
+     */
+    public long getResumeFrom()
+    {
+        return resumeFrom;
+    }
+
+    public SketchServerRoom getRoom()
+    {
+        return room;
+    }
+
+    public SketchServerSession getSession()
+    {
+        return session;
+    }
+
+    /**
+     * The sessions of a follower's clients (null unless the client is a follower).
+     */
+    public SketchServerRelay getRelay()
+    {
+        return relay;
+    }
+
+    public boolean isBinaryIn()
+    {
+        return binaryIn;
+    }
+
+    /**
+     * Clean Up - Takes the connection out of its room (so nothing more is broadcast to it), and finishes whatever the
+     * client (or a follower's clients) left open.
+     */
+    public void end()
+    {
+        room.removeCommunicator(connection);
+        session.end();
+        if (relay != null)
+            relay.end();
+    }
+
+    /**
+     * Helper Method - Moves the client to another room: out of the old room (finishing any stroke it left there), and
+     * into the new one. The client starts over from a copy of the new room's sketch once the WELCOME has gone out
+     * (which drops anything from the old room still queued).
+     *
+     * @param name The room's name.
+     * @return Whether the client moved.
+     */
+    private boolean joinRoom(String name)
+    {
+        if (name.equals(room.getName()))
+            return false;
+
+        SketchServerRoom next;
+        try
+        {
+            next = server.getRoom(name);
+        }
+
+        catch (IOException | IllegalArgumentException e)
+        {
+            System.err.println("Could Not Join Room: " + e.getMessage());
+            return false;
+        }
+
+        room.removeCommunicator(connection);
+        session.end();
+
+        room = next;
+        session = new SketchServerSession(room, connection);
+        room.addCommunicator(connection);
+        return true;
+    }
+}
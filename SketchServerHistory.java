@@ -0,0 +1,82 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sketch Server History - The most recent changes to a room's sketch, as the messages broadcast for them, kept in a
+ * ring buffer so that a client that reconnects after a short drop can be sent just the changes it missed, rather than
+ * a whole copy of the sketch. Once the buffer is full, each change pushes out the oldest, so a client that has been
+ * gone for longer than that gets a copy after all.
+ * Only used by the room's sequencer.
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public class SketchServerHistory
+{
+    private WireMessage[] changes; // Circular buffer of the changes, oldest first.
+    private int head, size; // Index of the oldest change, and the number of changes.
+    private long last; // The number of the newest change (or of the version the room started at, if none yet).
+
+    public SketchServerHistory(int capacity, long version)
+    {
+        changes = new WireMessage[capacity];
+        last = version;
+    }
+
+    /**
+     * Adds the next change (numbered one after the last).
+     */
+    public void add(WireMessage change)
+    {
+        if (changes.length == 0)
+        {
+            last = change.getSeq();
+            return;
+        }
+
+        if (size == changes.length)
+        {
+            changes[head] = null;
+            head = (head + 1) % changes.length;
+            size -= 1;
+        }
+
+        changes[(head + size) % changes.length] = change;
+        size += 1;
+        last = change.getSeq();
+    }
+
+    /**
+     * Starts over at a version, forgetting the changes before it (when the room's sketch is replaced, say by the log).
+     */
+    public void reset(long version)
+    {
+        while (size > 0)
+        {
+            changes[head] = null;
+            head = (head + 1) % changes.length;
+            size -= 1;
+        }
+
+        last = version;
+    }
+
+    /**
+     * The changes after a given one, in order.
+     *
+     * @param seq The number of the last change the client has.
+     * @return The changes, or null if some of them are no longer kept (or the client claims changes there haven't
+     *         been).
+     */
+    public List<WireMessage> since(long seq)
+    {
+        long missed = last - seq;
+        if (missed < 0 || missed > size)
+            return null;
+
+        List<WireMessage> result = new ArrayList<>((int) missed);
+        for (int i = size - (int) missed; i < size; i += 1)
+            result.add(changes[(head + i) % changes.length]);
+
+        return result;
+    }
+}
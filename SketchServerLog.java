@@ -0,0 +1,467 @@
+import java.awt.*;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Sketch Server Log - The write-ahead log of every change applied to the server sketch, so that a restarted server
+ * picks up where it left off. Each change is appended as the message broadcast for it (one text line), in the order
+ * the changes were applied, and replaying the lines into an empty sketch rebuilds it (shape IDs included, since
+ * replaying the ADDs hands out the same IDs again).
+ * Every so often the whole sketch is written out as a checkpoint (see SketchServerCheckpoint), and the log before it is
+ * thrown away, so restarting takes time in proportion to the shapes in the sketch (plus the changes since the last
+ * checkpoint), not to every change ever made. Taking a checkpoint starts a new log (rotate), and the old one is only
+ * deleted once the checkpoint is on the disk; each log starts with a "LOG number" line (the number of its first
+ * change), so on restart the changes already in the checkpoint are skipped.
+ * Appending only copies the line into a buffer; getting it onto the disk (an fsync) is what costs, and how often that
+ * happens is the sync policy:
+ *  ALWAYS   - Each change is on the disk before any client hears of it (or is sent an ACK for it): the room holds
+ *             its changes back until a worker has fsynced them. The changes logged while one fsync runs all share the
+ *             next (group commit), so a busy server does far fewer fsyncs than changes, and no reader ever waits.
+ *  INTERVAL - Every so many milliseconds, on one of the server's workers; a crash loses at most the last interval.
+ *  OS       - Never; the lines are handed to the OS as they are appended, and it writes them out when it likes (so only
+ *             a crash of the machine, not of the server, loses anything).
+ * Once writing or fsyncing the log has failed, the log has failed for good: nothing more is appended, and appending
+ * (or waiting for a change to be on the disk) throws, so the room stops taking changes rather than acknowledging ones
+ * that may never reach the disk.
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public class SketchServerLog implements MessageHandler
+{
+    public enum Sync
+    {
+        ALWAYS, INTERVAL, OS
+    }
+
+    private File file; // Where the log is kept.
+    private File old; // The log from before the last checkpoint, until the checkpoint is on the disk.
+    private SketchServerCheckpoint checkpoint; // The last checkpoint.
+    private Sync sync; // When to fsync.
+    private SketchServerStats stats; // Where to count the changes logged, and the fsyncs.
+    private FileChannel channel; // For fsyncs (and cutting off a broken last line).
+    private OutputStream out; // Buffer in front of the file.
+
+    private long appended; // Number of changes logged (ever, counting those in the checkpoint and those replayed).
+    private long durable; // Number of changes known to be on the disk.
+    private boolean syncing; // Whether some thread is fsyncing (with the lock released).
+    private IOException failure; // Why the log failed (null unless it has).
+    private ReentrantLock lock = new ReentrantLock(); // Guards all of the above (and the buffer).
+    private Condition synced = lock.newCondition(); // Signalled when an fsync finishes.
+
+    private Sketch replaying; // The sketch being rebuilt (while replaying only).
+
+    public SketchServerLog(File file, Sync sync, SketchServerStats stats)
+    {
+        this.file = file;
+        this.sync = sync;
+        old = new File(file.getPath() + ".old");
+        checkpoint = new SketchServerCheckpoint(new File(file.getPath() + ".checkpoint"));
+        this.stats = stats;
+    }
+
+    /**
+     * Rebuilds a sketch from the checkpoint (if there is one yet) and the changes logged after it, then opens the log
+     * for appending. A last line cut off by a crash is thrown away.
+     *
+     * @param sketch The sketch to rebuild (empty).
+     * @return The number of changes the sketch now includes (its version).
+     */
+    public long open(Sketch sketch) throws IOException
+    {
+        if (checkpoint.exists())
+            appended = checkpoint.load(sketch);
+
+        // The log from before the last checkpoint is still there if the server stopped while writing it.
+        replaying = sketch;
+        if (old.exists())
+            replay(old);
+
+        long valid = file.exists() ? replay(file) : 0; // Length of the log up to the end of the last whole line.
+        replaying = null;
+
+        durable = appended;
+        openForAppend(valid);
+        return appended;
+    }
+
+    /**
+     * Starts a new log for the changes from now on, keeping the one so far (as the old log) until a checkpoint that
+     * includes all of it has been written. To be called while no changes can be appended. Does nothing if the old log
+     * is still there (when the last checkpoint failed), as the next checkpoint will include it anyway.
+     */
+    public void rotate() throws IOException
+    {
+        lock.lock();
+        try
+        {
+            if (old.exists())
+                return;
+
+            if (failure != null)
+                throw new IOException("Log has failed", failure);
+
+            // Letting any fsync finish, then getting everything onto the disk and closing the log.
+            while (syncing)
+                synced.awaitUninterruptibly();
+
+            try
+            {
+                out.flush();
+                channel.force(false);
+                out.close();
+                durable = appended;
+                synced.signalAll();
+
+                Files.move(file.toPath(), old.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                openForAppend(0);
+            }
+
+            catch (IOException e)
+            {
+                fail(e);
+                throw e;
+            }
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes a checkpoint, then throws away the old log, as the checkpoint includes all of it.
+     *
+     * @param version The number of changes the copy of the sketch includes (at least all those in the old log).
+     * @param nextID The ID the next shape added will be given.
+     * @param sketch The copy of the sketch (a version of it, taken by the room's sequencer).
+     * @return The size of the checkpoint, in bytes.
+     */
+    public long checkpoint(long version, int nextID, SketchVersion sketch) throws IOException
+    {
+        long size = checkpoint.write(version, nextID, sketch);
+        old.delete();
+        return size;
+    }
+
+    /**
+     * Whether the old log is still there (so a checkpoint is needed before it can be thrown away).
+     */
+    public boolean hasOld()
+    {
+        return old.exists();
+    }
+
+    /**
+     * Whether writing or fsyncing the log has failed (so it takes no more changes).
+     */
+    public boolean hasFailed()
+    {
+        lock.lock();
+        try
+        {
+            return failure != null;
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts fsyncing every so often (INTERVAL only).
+     *
+     * @param workers The threads to fsync on.
+     * @param millis How often.
+     */
+    public void startSyncing(ScheduledExecutorService workers, int millis)
+    {
+        workers.scheduleAtFixedRate(() -> commit(appended()), millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Appends a change to the log (to the buffer, or for OS, on to the OS). To be called in the order the changes are
+     * applied.
+     *
+     * @param msg The message broadcast for the change.
+     * @return The change's position in the log, to wait for with awaitDurable.
+     * @throws UncheckedIOException If the change couldn't be written (or the log had already failed).
+     */
+    public long append(String msg)
+    {
+        lock.lock();
+        try
+        {
+            if (failure != null)
+                throw new UncheckedIOException("Log has failed", failure);
+
+            try
+            {
+                out.write(msg.getBytes(StandardCharsets.UTF_8));
+                out.write('\n');
+                if (sync == Sync.OS)
+                    out.flush();
+            }
+
+            catch (IOException e)
+            {
+                fail(e);
+                throw new UncheckedIOException("Could not write log", e);
+            }
+
+            appended += 1;
+            stats.logged.incrementAndGet();
+            return appended;
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a change to be on the disk, if the sync policy says to (ALWAYS), fsyncing it (and everything appended
+     * before it) unless another thread is already doing so, in which case the change may be covered by that fsync or
+     * the next.
+     *
+     * @param position The change's position in the log, from append.
+     * @throws UncheckedIOException If the log has failed (so the change may never be on the disk).
+     */
+    public void awaitDurable(long position)
+    {
+        if (sync == Sync.ALWAYS)
+            commit(position);
+    }
+
+    /**
+     * Helper Method - The number of lines appended so far.
+     */
+    private long appended()
+    {
+        lock.lock();
+        try
+        {
+            return appended;
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Helper Method - Gets everything up to a position in the log onto the disk, with one fsync for whatever has been
+     * appended by the time it starts (group commit). Only one thread fsyncs at a time; the others wait for it, and
+     * then either find their change covered, or fsync the next group themselves.
+     *
+     * @throws UncheckedIOException If the log has failed before the position was on the disk.
+     */
+    private void commit(long position)
+    {
+        lock.lock();
+        try
+        {
+            while (durable < position)
+            {
+                if (failure != null)
+                    throw new UncheckedIOException("Log has failed", failure);
+
+                if (syncing)
+                {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+
+                // Handing the buffer to the OS, then fsyncing without the lock, so appending carries on meanwhile.
+                syncing = true;
+                long target = appended;
+                try
+                {
+                    out.flush();
+                    lock.unlock();
+                    try
+                    {
+                        channel.force(false);
+                    }
+
+                    finally
+                    {
+                        lock.lock();
+                    }
+
+                    durable = target;
+                    stats.fsyncs.incrementAndGet();
+                }
+
+                catch (IOException e)
+                {
+                    fail(e);
+                    throw new UncheckedIOException("Could not sync log", e);
+                }
+
+                finally
+                {
+                    syncing = false;
+                    synced.signalAll();
+                }
+            }
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Helper Method - Marks the log as failed (for good), the first time something goes wrong with it. To be called
+     * while holding the lock.
+     */
+    private void fail(IOException e)
+    {
+        if (failure != null)
+            return;
+
+        failure = e;
+        System.err.println("Log Failed (No More Changes Taken): " + e.getMessage());
+    }
+
+    /**
+     * Helper Method - Replays the changes in a log file that the sketch doesn't include yet. Each file starts with a
+     * "LOG number" line, the number of the first change in it.
+     *
+     * @return The length of the file up to the end of the last whole line.
+     */
+    private long replay(File log) throws IOException
+    {
+        long valid = 0, number = 0;
+        MessageDecoder decoder = new MessageDecoder();
+
+        try (InputStream in = new FileInputStream(log))
+        {
+            WireReader reader = new WireReader(in);
+            while (reader.readLine() && !reader.isCutOff())
+            {
+                valid += reader.getLength() + 1;
+
+                if (reader.startsWith("LOG "))
+                {
+                    try
+                    {
+                        number = Long.parseLong(reader.getText().substring(4)) - 1;
+                    }
+
+                    // A broken header is cut off, like a broken last line.
+                    catch (NumberFormatException e)
+                    {
+                        System.err.println("Invalid header in log: " + reader.getText());
+                        valid -= reader.getLength() + 1;
+                        break;
+                    }
+
+                    continue;
+                }
+
+                // Skipping the changes already in the checkpoint.
+                number += 1;
+                if (number <= appended)
+                    continue;
+
+                appended = number;
+
+                try
+                {
+                    decoder.decodeText(reader.getBytes(), 0, reader.getLength(), this);
+                }
+
+                catch (MalformedMessageException e)
+                {
+                    System.err.println("Invalid line in log: " + e.getMessage());
+                }
+            }
+        }
+
+        return valid;
+    }
+
+    /**
+     * Helper Method - Opens the log for appending, cutting it off after its last whole line, and starting it with its
+     * "LOG number" line if it is new.
+     *
+     * @param valid The length of the log up to the end of its last whole line.
+     */
+    private void openForAppend(long valid) throws IOException
+    {
+        FileOutputStream fileOut = new FileOutputStream(file, true);
+        channel = fileOut.getChannel();
+        channel.truncate(valid);
+        out = new BufferedOutputStream(fileOut, 65536);
+
+        if (valid == 0)
+        {
+            out.write(("LOG " + (appended + 1) + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+    }
+
+    /**
+     * Replaying - Adds a shape, as it was added.
+     */
+    @Override
+    public void handleAdd(Shape shape)
+    {
+        replaying.addShape(shape);
+    }
+
+    /**
+     * Replaying - Adds (or replaces) a shape with a given ID.
+     */
+    @Override
+    public void handleAddID(int ID, Shape shape)
+    {
+        replaying.addShape(ID, shape);
+    }
+
+    /**
+     * Replaying - Moves a shape.
+     */
+    @Override
+    public void handleMove(int ID, int dx, int dy)
+    {
+        replaying.moveShape(ID, dx, dy);
+    }
+
+    /**
+     * Replaying - Recolors a shape.
+     */
+    @Override
+    public void handleRecolor(int ID, Color color)
+    {
+        replaying.recolorShape(ID, color);
+    }
+
+    /**
+     * Replaying - Deletes a shape.
+     */
+    @Override
+    public void handleDelete(int ID)
+    {
+        replaying.deleteShape(ID);
+    }
+
+    /**
+     * Replaying - Adds points to a stroke.
+     */
+    @Override
+    public void handleAppendPointsID(int ID, int[] coordinates, int count)
+    {
+        replaying.appendPoints(ID, coordinates, count);
+    }
+}
@@ -0,0 +1,292 @@
+import java.awt.*;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sketch Server Protocol - Applies the operations received from clients (ADD, MOVE, RECOLOR, DELETE) to the server
+ * sketch and broadcasts the results (a new shape as an ADD_ID, with the ID it was given). Shared by every connection in
+ * a room, however its socket is being serviced.
+ * The handlers don't change the sketch themselves, but hand each change (and the message for it) to the room's
+ * sequencer (see SketchServerSequencer), which applies them one at a time, in order; the messages are built here, on
+ * the communicators' threads, so the sequencer only has to apply them (apart from a stroke's, which need the ID the
+ * stroke is given there). The handlers never wait for the sequencer to get to a change, so an event loop serving many
+ * connections is never held up by one busy room. Messages are decoded (text or binary) by each connection's
+ * MessageDecoder, straight into these handlers.
+ * If MOVE coalescing is on, a shape's MOVEs are held back and added up for a short window, then applied and broadcast
+ * as one MOVE per shape (so a drag costs a few messages a second, not one per mouse event). Any other operation first
+ * flushes the held back MOVEs, so everything still goes out in the order it was applied. MOVEs from a client whose
+ * changes are acknowledged (see SketchServerSession) are only added up with its own MOVEs of the same shape, so the ACK
+ * sent in place of the flushed MOVE covers exactly the MOVEs in it.
+ * Freehand strokes can also be streamed, point by point as they are drawn (BEGIN_STROKE, APPEND_POINTS, END_STROKE,
+ * matched up with their stroke by each connection's SketchServerSession), so the other clients see them being drawn.
+ * The clients are told about a new stroke with an ADD_ID, then about its points with APPEND_POINTS_ID, and finally (if
+ * simplifying it removed any points) with an ADD_ID of the finished stroke, which replaces it.
+ *
+ * @author Chris Bailey-Kellogg, Dartmouth CS 10, Fall 2012, Winter 2014
+ * @author Carter Kruse, Dartmouth CS 10, Spring 2022
+ */
+public class SketchServerProtocol implements MessageHandler
+{
+    private SketchServerRoom room; // Handling Messages For
+    private boolean coalescing; // Whether MOVEs are being held back and added up.
+    private Map<Integer, HeldMove> pendingMoves = new LinkedHashMap<>(); // Shape ID -> movement not yet applied.
+    private ReentrantLock moveLock = new ReentrantLock(); // Guards the pending MOVEs, and keeps flushes in order.
+
+    public SketchServerProtocol(SketchServerRoom room)
+    {
+        this.room = room;
+    }
+
+    /**
+     * Starts holding back MOVEs and flushing them every so often.
+     *
+     * @param workers The threads to flush them on.
+     * @param millis How long to add up each shape's MOVEs for.
+     */
+    public void startCoalescing(ScheduledExecutorService workers, int millis)
+    {
+        coalescing = true;
+        workers.scheduleAtFixedRate(this::flushMoves, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Applies and broadcasts the held back MOVEs, one per shape. The MOVEs are only applied to the server sketch now
+     * (not as they arrive), so that a snapshot never includes a MOVE that is still to be broadcast.
+     */
+    public void flushMoves()
+    {
+        moveLock.lock();
+        try
+        {
+            for (Map.Entry<Integer, HeldMove> entry : pendingMoves.entrySet())
+            {
+                int ID = entry.getKey(), dx = entry.getValue().dx, dy = entry.getValue().dy;
+                HeldMove held = entry.getValue();
+
+                room.update(() -> room.getSketch().moveShape(ID, dx, dy), WireMessage.move(ID, dx, dy), held.from,
+                        held.op);
+            }
+
+            pendingMoves.clear();
+        }
+
+        finally
+        {
+            moveLock.unlock();
+        }
+    }
+
+    /**
+     * Helper Function - Adds a given shape in the server sketch and client sketches.
+     */
+    @Override
+    public void handleAdd(Shape shape)
+    {
+        // Simplifying a freehand stroke before it is stored (and sent on to everyone).
+        if (shape instanceof Polyline && room.getConfig().strokeTolerance > 0)
+        {
+            Polyline stroke = (Polyline) shape;
+            room.getStats().strokePoints.addAndGet(stroke.size());
+            stroke.simplify(room.getConfig().strokeTolerance);
+            room.getStats().strokePointsKept.addAndGet(stroke.size());
+        }
+
+        // Adding the shape to the server sketch and broadcasting it with the ID it was given, so a client (or follower
+        // server) that started from a copy of the sketch gives it the same ID, even if the shapes with the last IDs
+        // have been deleted since.
+        flushMoves();
+        room.update(() -> WireMessage.addID(room.getSketch().addShape(shape), shape));
+    }
+
+    /**
+     * Helper Function - Moves a given shape in the server sketch and client sketches.
+     *
+     * @param from The session of the client that sent the MOVE.
+     * @param op The MOVE's number, for the client's ACK (0 if it isn't acknowledged).
+     */
+    public void handleMove(int ID, int dx, int dy, SketchServerSession from, long op)
+    {
+        // Adding up the MOVE with any others held back for the same shape.
+        if (coalescing)
+        {
+            moveLock.lock();
+            try
+            {
+                // Flushing first if the MOVE can't be added up with those held back (see above).
+                HeldMove held = pendingMoves.get(ID);
+                if (held != null ? held.from != from && (from.isAcking() || held.from.isAcking())
+                        : from.isAcking() && isHolding(from))
+                {
+                    flushMoves();
+                    held = null;
+                }
+
+                if (held == null)
+                    pendingMoves.put(ID, new HeldMove(dx, dy, from, op));
+
+                else
+                {
+                    held.dx += dx;
+                    held.dy += dy;
+                    held.op = op;
+                    room.getStats().movesMerged.incrementAndGet();
+                }
+            }
+
+            finally
+            {
+                moveLock.unlock();
+            }
+
+            return;
+        }
+
+        // Modifying the server sketch and broadcasting the message.
+        room.update(() -> room.getSketch().moveShape(ID, dx, dy), WireMessage.move(ID, dx, dy), from, op);
+    }
+
+    /**
+     * Helper Function - Recolors a given shape in the server sketch and client sketches.
+     *
+     * @param from The session of the client that sent the RECOLOR.
+     * @param op The RECOLOR's number, for the client's ACK (0 if it isn't acknowledged).
+     */
+    public void handleRecolor(int ID, Color color, SketchServerSession from, long op)
+    {
+        // Modifying the server sketch and broadcasting the message.
+        flushMoves();
+        room.update(() -> room.getSketch().recolorShape(ID, color), WireMessage.recolor(ID, color), from, op);
+    }
+
+    /**
+     * Helper Function - Deletes a given shape in the server sketch and client sketches.
+     *
+     * @param from The session of the client that sent the DELETE.
+     * @param op The DELETE's number, for the client's ACK (0 if it isn't acknowledged).
+     */
+    public void handleDelete(int ID, SketchServerSession from, long op)
+    {
+        // Modifying the server sketch and broadcasting the message.
+        flushMoves();
+        room.update(() -> room.getSketch().deleteShape(ID), WireMessage.delete(ID), from, op);
+    }
+
+    /**
+     * Begin Stroke - Adds a new stroke (a Polyline of one point so far) to the server sketch and client sketches.
+     * Returns without waiting for the stroke to be added, so the ID it is given is only known on the sequencer, and is
+     * only read there (by the stroke's other changes, queued after it).
+     *
+     * @return The stroke: the ID it was given, once the sequencer has added it (-1 until then, or if it wasn't added).
+     */
+    public int[] beginStroke(int x, int y, Color color)
+    {
+        Polyline polyline = new Polyline(x, y, color);
+        int[] stroke = {-1};
+
+        // Adding the stroke to the server sketch and broadcasting it with the ID it was given.
+        flushMoves();
+        room.update(() ->
+        {
+            stroke[0] = room.getSketch().addShape(polyline);
+            return WireMessage.addID(stroke[0], polyline);
+        });
+
+        return stroke;
+    }
+
+    /**
+     * Append Points - Adds points to a stroke in the server sketch and client sketches.
+     *
+     * @param stroke The stroke (see beginStroke).
+     * @param coordinates The coordinates of the points (x1, y1, x2, y2...), of which only the first count are used.
+     */
+    public void appendPoints(int[] stroke, int[] coordinates, int count)
+    {
+        // Modifying the server sketch and broadcasting the message (with a copy of the points, as the decoder reuses its
+        // array for the next message, likely before the sequencer gets to this one).
+        int[] points = Arrays.copyOf(coordinates, count);
+        flushMoves();
+        room.update(() ->
+        {
+            int ID = stroke[0];
+            if (ID == -1)
+                return null;
+
+            room.getSketch().appendPoints(ID, points, count);
+            return WireMessage.appendPointsID(ID, points, count);
+        });
+    }
+
+    /**
+     * End Stroke - Finishes a stroke, simplifying it, and sending the simplified stroke in place of the one drawn (if
+     * that removed any points).
+     *
+     * @param stroke The stroke (see beginStroke).
+     */
+    public void endStroke(int[] stroke)
+    {
+        double tolerance = room.getConfig().strokeTolerance;
+        if (tolerance <= 0)
+            return;
+
+        flushMoves();
+        room.update(() ->
+        {
+            // The stroke may already have been deleted (or replaced) by someone else. Nothing else can change it while
+            // this runs, on the sequencer.
+            int ID = stroke[0];
+            Sketch sketch = room.getSketch();
+            if (ID == -1 || !(sketch.getShape(ID) instanceof Polyline))
+                return null;
+
+            // Simplifying a copy, as the stroke is still in the versions of the sketch published already.
+            Polyline simplified = ((Polyline) sketch.getShape(ID)).copy();
+            room.getStats().strokePoints.addAndGet(simplified.size());
+            int removed = simplified.simplify(tolerance);
+            room.getStats().strokePointsKept.addAndGet(simplified.size());
+
+            if (removed == 0)
+                return null;
+
+            // Putting the simplified stroke in place of the one drawn.
+            sketch.addShape(ID, simplified);
+            return WireMessage.addID(ID, simplified);
+        });
+    }
+
+    /**
+     * Helper Method - Whether any MOVE held back came from a client (with the move lock held).
+     */
+    private boolean isHolding(SketchServerSession from)
+    {
+        for (HeldMove held : pendingMoves.values())
+        {
+            if (held.from == from)
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Held Move - The movement of a shape held back so far, and the client it came from (with the number of the last
+     * of its MOVEs in it, for the ACK).
+     */
+    private static class HeldMove
+    {
+        int dx, dy;
+        SketchServerSession from;
+        long op;
+
+        HeldMove(int dx, int dy, SketchServerSession from, long op)
+        {
+            this.dx = dx;
+            this.dy = dy;
+            this.from = from;
+            this.op = op;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sketch Server Relay - The clients of a follower server (see SketchServerUpstream), as seen by the server it follows.
+ * A follower connects like any editor (and is sent every change, like any editor), but the messages it sends come
+ * from its own clients, each line saying which one: "FROM <client> <message>", and "LEFT <client>" once the client has
+ * gone. Each of its clients gets a SketchServerSession of its own here, so their strokes are matched up with the right
+ * stroke, however their messages are interleaved, and the session finishes whatever the client left open.
+ * The relayed messages are text only (a follower never asks for binary). Only used by the follower connection's
+ * reader.
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public class SketchServerRelay
+{
+    private SketchServerRoom room; // The room the follower is following.
+    private ClientConnection connection; // The follower's connection.
+    private Map<Integer, SketchServerSession> sessions = new HashMap<>(); // Client -> its session.
+
+    public SketchServerRelay(SketchServerRoom room, ClientConnection connection)
+    {
+        this.room = room;
+        this.connection = connection;
+    }
+
+    /**
+     * Whether a line is relayed from one of the follower's clients (a FROM or LEFT), rather than an ordinary message.
+     */
+    public static boolean isRelayed(byte[] bytes, int offset, int length)
+    {
+        return startsWith(bytes, offset, length, "FROM ") || startsWith(bytes, offset, length, "LEFT ");
+    }
+
+    /**
+     * Handles a line relayed from one of the follower's clients: decodes the message in a FROM into the client's
+     * session, or ends the session of the client a LEFT is about.
+     *
+     * @param decoder The connection's decoder.
+     * @throws MalformedMessageException If the line (or the message in it) is malformed.
+     */
+    public void handle(byte[] bytes, int offset, int length, MessageDecoder decoder)
+    {
+        int end = offset + length;
+        int position = offset + 5; // After "FROM " or "LEFT ".
+
+        // Reading the client's number.
+        int client = 0, digits = 0;
+        while (position < end && bytes[position] >= '0' && bytes[position] <= '9' && digits < 9)
+        {
+            client = client * 10 + bytes[position] - '0';
+            position += 1;
+            digits += 1;
+        }
+
+        if (digits == 0)
+            throw new MalformedMessageException("Missing client");
+
+        if (bytes[offset] == 'L')
+        {
+            if (position != end)
+                throw new MalformedMessageException("Extra fields");
+
+            SketchServerSession session = sessions.remove(client);
+            if (session != null)
+                session.end();
+
+            return;
+        }
+
+        if (position == end || bytes[position] != ' ')
+            throw new MalformedMessageException("Missing message");
+
+        SketchServerSession session = sessions.get(client);
+        if (session == null)
+        {
+            session = new SketchServerSession(room, connection);
+            sessions.put(client, session);
+        }
+
+        decoder.decodeText(bytes, position + 1, end - position - 1, session);
+    }
+
+    /**
+     * Clean Up - Finishes whatever the follower's clients left open, once the follower's connection has closed.
+     */
+    public void end()
+    {
+        for (SketchServerSession session : sessions.values())
+            session.end();
+
+        sessions.clear();
+    }
+
+    /**
+     * Helper Method - Whether a line starts with a prefix (ASCII).
+     */
+    private static boolean startsWith(byte[] bytes, int offset, int length, String prefix)
+    {
+        if (length < prefix.length())
+            return false;
+
+        for (int i = 0; i < prefix.length(); i += 1)
+        {
+            if (bytes[offset + i] != prefix.charAt(i))
+                return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,701 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Sketch Server Room - One sketch, and the clients drawing on it: its changes are applied in order by its own
+ * sequencer (see SketchServerSequencer), numbered, broadcast, and kept in its history and log.
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public class SketchServerRoom
+{
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}"); // Room names (used in log file names).
+
+    private String name; // The room's name ("" for the default room).
+    private SketchServer server; // The server the room is in (for the config, stats and workers).
+    private CopyOnWriteArrayList<ClientConnection> communicators; // All the connections with clients in the room.
+    private Sketch sketch; // The state of the room's world.
+    private SketchServerProtocol protocol; // Applies the clients' messages to the state of the world.
+
+    private boolean ticking; // Whether messages are being batched up per tick.
+    private SketchServerSequencer sequencer; // Applies every change, in order (the only thread that changes the room).
+    private List<WireMessage> tick = new ArrayList<>(); // Messages applied during the current tick, not yet broadcast.
+    private List<SketchServerSession> tickFrom = new ArrayList<>(); // Who to ACK in place of each (null for no one).
+    private List<WireMessage> tickAcks = new ArrayList<>(); // The ACK in place of each (null for none).
+    private SketchServerLog log; // Every change, kept on disk (null if not logging).
+    private long checkpointed; // The version of the last checkpoint taken.
+    private AtomicBoolean checkpointing = new AtomicBoolean(false); // Whether a checkpoint is being written.
+    private long version; // The number of changes applied to the sketch so far.
+    private SketchVersion sent = SketchVersion.EMPTY; // The sketch as of the last change broadcast (for copies of it).
+    private long sentVersion; // The number of changes in it.
+    private ArrayDeque<Held> held = new ArrayDeque<>(); // Changes applied, but not broadcast until on the disk.
+    private boolean syncing; // Whether a worker is getting the held back changes onto the disk.
+    private volatile long epoch; // Tells this run of the room apart from any other (before a restart, say).
+    private SketchServerHistory history; // The most recent changes, for clients picking up where they left off.
+    private volatile SketchServerUpstream upstream; // The primary being followed (null if not following one).
+
+    public SketchServerRoom(String name, SketchServer server)
+    {
+        this.name = name;
+        this.server = server;
+        sketch = new Sketch();
+        communicators = new CopyOnWriteArrayList<>();
+        epoch = ThreadLocalRandom.current().nextLong(Long.MAX_VALUE);
+        history = new SketchServerHistory(server.getConfig().historySize, version);
+        sequencer = new SketchServerSequencer("Sequencer" + (name.isEmpty() ? "" : " " + name),
+                server.getConfig().sequencerCapacity, server.getStats());
+    }
+
+    /**
+     * Whether a name can be used for a room (letters, digits, '-' and '_', up to 64 of them).
+     */
+    public static boolean isValidName(String name)
+    {
+        return NAME.matcher(name).matches();
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public Sketch getSketch()
+    {
+        return sketch;
+    }
+
+    public SketchServerProtocol getProtocol()
+    {
+        return protocol;
+    }
+
+    public long getEpoch()
+    {
+        return epoch;
+    }
+
+    /**
+     * The connection to the primary the room is following, which its clients' changes are forwarded to (null if it
+     * isn't following one, and applies them itself).
+     */
+    public SketchServerUpstream getUpstream()
+    {
+        return upstream;
+    }
+
+    public boolean isFollowing()
+    {
+        return upstream != null;
+    }
+
+    /**
+     * The last change a reconnecting client has, from the "<epoch>:<seq>" it asked to resume from.
+     *
+     * @return The change's number, or -1 if it is from another run of the room (or isn't a resume point at all).
+     */
+    public long getResumePoint(String resume)
+    {
+        String[] parts = resume.split(":");
+
+        try
+        {
+            if (parts.length == 2 && Long.parseLong(parts[0]) == epoch)
+                return Math.max(-1, Long.parseLong(parts[1]));
+        }
+
+        catch (NumberFormatException e)
+        {
+            // Not a resume point, so the client starts over.
+        }
+
+        return -1;
+    }
+
+    public SketchServerConfig getConfig()
+    {
+        return server.getConfig();
+    }
+
+    public SketchServerStats getStats()
+    {
+        return server.getStats();
+    }
+
+    /**
+     * Starts the room: its protocol and sequencer, and its ticks and MOVE flushes (if the config asks for them) on the
+     * server's workers. Kept out of the constructor, as they all hold on to the room. To be called before the log is
+     * opened (which may take a checkpoint, on the sequencer).
+     */
+    public void start()
+    {
+        SketchServerConfig config = server.getConfig();
+        ScheduledExecutorService workers = server.getWorkers();
+
+        protocol = new SketchServerProtocol(this);
+        sequencer.start();
+
+        if (config.tickInterval > 0)
+        {
+            ticking = true;
+            int millis = config.tickInterval;
+            workers.scheduleAtFixedRate(() -> sequencer.submit(this::flushTick), millis, millis, TimeUnit.MILLISECONDS);
+        }
+
+        if (config.coalesceWindow > 0)
+            protocol.startCoalescing(workers, config.coalesceWindow);
+    }
+
+    /**
+     * Follows the same room on a primary server: connects to it (to the first of the addresses that answers), and
+     * keeps applying its changes, until promoted.
+     *
+     * @param primaries The primary's address ("host:port"), followed by any others to try in turn.
+     */
+    public void follow(String[] primaries)
+    {
+        upstream = new SketchServerUpstream(this, primaries, server.getConfig().failover, server::promote);
+        Thread.ofVirtual().name("Upstream" + (name.isEmpty() ? "" : " " + name)).start(upstream);
+    }
+
+    /**
+     * Promotes the room, so it applies its clients' changes itself, rather than forwarding them to the primary it was
+     * following (which it stops following). It carries on from the last change it had, but numbers its changes in a
+     * new epoch: its clients still have the changes it has, but the primary's clients may have had changes it never
+     * got, so any that pick up here are sent a fresh copy of the sketch instead.
+     */
+    public void promote()
+    {
+        SketchServerUpstream promoted = upstream;
+        if (promoted == null)
+            return;
+
+        upstream = null;
+        promoted.stop();
+        sequencer.submit(() -> epoch = ThreadLocalRandom.current().nextLong(Long.MAX_VALUE));
+        System.out.println("Promoted" + (name.isEmpty() ? "" : " room " + name));
+    }
+
+    /**
+     * Starts the room over from a copy of the primary's sketch (once it has arrived in full), taking on the primary's
+     * epoch and version, so its changes are numbered as the primary numbers them. Done by the sequencer, between two
+     * changes, and every client starts over too, from a fresh copy.
+     *
+     * @param epoch The primary's epoch.
+     * @param shapes The primary's shapes.
+     * @param nextID The ID the next shape added will be given.
+     * @param version The number of changes the copy includes.
+     */
+    public void startOver(long epoch, SketchVersion shapes, int nextID, long version)
+    {
+        sequencer.submit(() ->
+        {
+            if (ticking)
+                flushTick();
+
+            sketch.load(shapes, nextID);
+            this.version = version;
+            this.epoch = epoch;
+            history.reset(version);
+            sent = sketch.getVersion();
+            sentVersion = version;
+
+            for (ClientConnection communicator : communicators)
+                communicator.resync();
+        });
+    }
+
+    /**
+     * Rebuilds the sketch from the log (if there is one yet), and logs every change from now on.
+     *
+     * @param file Where the log is kept.
+     */
+    public void openLog(File file) throws IOException
+    {
+        SketchServerConfig config = server.getConfig();
+
+        long start = System.nanoTime();
+        log = new SketchServerLog(file, config.logSync, server.getStats());
+        version = log.open(sketch);
+        checkpointed = version;
+        history.reset(version);
+        sent = sketch.getVersion();
+        sentVersion = version;
+        System.out.println("Loaded version " + version + " (" + sketch.getVersion().size() + " shapes) from " + file + " in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+
+        if (config.logSync == SketchServerLog.Sync.INTERVAL)
+            log.startSyncing(server.getWorkers(), config.logSyncInterval);
+
+        // Finishing off a checkpoint that was interrupted, so the old log can go.
+        if (log.hasOld())
+        {
+            checkpointing.set(true);
+            checkpoint();
+        }
+    }
+
+    /**
+     * Takes a checkpoint of the sketch and starts a new log, on the sequencer (so it is exactly the changes so far),
+     * then writes the checkpoint out and throws away the old log, on this thread.
+     */
+    public void checkpoint()
+    {
+        try
+        {
+            Copy copy = sequencer.call(() ->
+            {
+                checkpointed = version;
+                try
+                {
+                    log.rotate();
+                }
+
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+
+                return new Copy(sketch.getVersion(), version, sketch.IDIndex);
+            });
+
+            long at = copy.version;
+            long start = System.nanoTime();
+            long size = log.checkpoint(at, copy.nextID, copy.sketch);
+            System.out.println("Checkpoint" + (name.isEmpty() ? "" : " of room " + name) + " at version " + at + ": "
+                    + size + " bytes in " + (System.nanoTime() - start) / 1000000 + " ms");
+        }
+
+        catch (IOException | UncheckedIOException e)
+        {
+            System.err.println("Could Not Checkpoint: " + e.getMessage());
+        }
+
+        finally
+        {
+            checkpointing.set(false);
+        }
+    }
+
+    /**
+     * Adds the communicator to the list of the room's communicators.
+     */
+    public void addCommunicator(ClientConnection communicator)
+    {
+        communicators.add(communicator);
+    }
+
+    /**
+     * Removes the communicator from the list of the room's communicators.
+     */
+    public void removeCommunicator(ClientConnection communicator)
+    {
+        communicators.remove(communicator);
+    }
+
+    /**
+     * Waits until the room's sequencer has room for the changes in another message, for a reader thread about to read
+     * its next message (see SketchServerSequencer).
+     */
+    public void awaitRoom()
+    {
+        sequencer.awaitRoom();
+    }
+
+    /**
+     * Whether the room's sequencer has room for the changes in another message, for a reader that must not wait (an
+     * event loop), which stops reading if not.
+     *
+     * @param ready Tells the reader to pick up reading again, once there is room (only if there isn't now).
+     */
+    public boolean hasRoom(Runnable ready)
+    {
+        if (sequencer.hasRoom())
+            return true;
+
+        sequencer.whenRoom(ready);
+        return false;
+    }
+
+    /**
+     * Applies a change to the sketch and broadcasts the message for it. Both happen on the sequencer, so that a change
+     * is either in the snapshot a resyncing client is sent, or in the messages queued after it (never both, never
+     * neither). Returns once the change is queued for the sequencer.
+     *
+     * @param change The change to the sketch.
+     * @param msg The message that tells the clients about it.
+     * @throws UncheckedIOException If the log has failed (as do all the other updates).
+     */
+    public void update(Runnable change, WireMessage msg)
+    {
+        update(change, msg, null, 0);
+    }
+
+    /**
+     * Applies a client's change to the sketch and broadcasts the message for it (with an ACK for the client in place
+     * of the message, if the client asked for them).
+     *
+     * @param change The change to the sketch.
+     * @param msg The message that tells the clients about it.
+     * @param from The session of the client the change came from.
+     * @param op The change's number, for the client's ACK (0 if it isn't acknowledged).
+     */
+    public void update(Runnable change, WireMessage msg, SketchServerSession from, long op)
+    {
+        update(() ->
+        {
+            change.run();
+            return msg;
+        }, from, op);
+    }
+
+    /**
+     * Applies a change to the sketch and broadcasts the message for it, for changes whose message depends on how the
+     * change went (such as the ID a new shape was given). The change is made on the sequencer.
+     *
+     * @param change The change to the sketch, which returns the message that tells the clients about it (or null if
+     *               there is nothing to tell them).
+     */
+    public void update(Supplier<WireMessage> change)
+    {
+        update(change, null, 0);
+    }
+
+    /**
+     * Helper Method - Hands a change to the sequencer.
+     */
+    private void update(Supplier<WireMessage> change, SketchServerSession from, long op)
+    {
+        checkLog();
+        sequencer.submit(() -> apply(change, from, op));
+    }
+
+    /**
+     * Helper Method - Applies a change to the sketch and broadcasts the message for it, with an ACK in place of the
+     * message for the client it came from (if any, and if it asked for them). Only called by the sequencer, which is
+     * what makes applying a change and queueing its message one step: no other change can come between the two, so
+     * every client is sent the changes in exactly the order they were applied.
+     * If the log is synced on every change, the message (and ACK) is held back until the change is on the disk, so no
+     * client hears of a change that a crash could still lose; the held back changes are broadcast in order, after the
+     * fsync that covers them (see syncHeld).
+     * Once the log has failed, no more changes are applied. A change that the log fails on is rolled back (the sketch
+     * goes back to the version before it), so it is never in a copy of the sketch or a checkpoint either.
+     *
+     * @throws UncheckedIOException If the log has failed.
+     */
+    private void apply(Supplier<WireMessage> change, SketchServerSession from, long op)
+    {
+        if (!sequencer.isCurrent())
+            throw new IllegalStateException("Changes must be applied by the room's sequencer");
+
+        checkLog();
+        SketchVersion before = sketch.getVersion();
+        int nextID = sketch.IDIndex;
+        WireMessage msg = change.get();
+        if (msg == null)
+            return;
+
+        long position = -1; // Where the change went in the log (if logging).
+        if (log != null)
+        {
+            try
+            {
+                position = log.append(msg.getText());
+            }
+
+            catch (UncheckedIOException e)
+            {
+                sketch.load(before, nextID);
+                throw e;
+            }
+        }
+
+        version += 1;
+        WireMessage message = msg.renumber(version);
+
+        // Taking a checkpoint (on a worker, as it waits for the sequencer) if it is time for one.
+        int interval = server.getConfig().checkpointInterval;
+        if (log != null && interval > 0 && version - checkpointed >= interval
+                && checkpointing.compareAndSet(false, true))
+            server.getWorkers().execute(this::checkpoint);
+
+        if (log != null && server.getConfig().logSync == SketchServerLog.Sync.ALWAYS)
+        {
+            held.add(new Held(message, from, op, position, sketch.getVersion()));
+            syncHeld();
+        }
+
+        else
+            send(message, from, op, sketch.getVersion());
+    }
+
+    /**
+     * Helper Method - Sends the clients the message for a change (with an ACK in place of it for the client it came
+     * from, if it asked for them), and keeps it for clients picking up where they left off. The message is queued for
+     * every client now (it is only written out later, by each client's writer), or held back for the end of the tick.
+     * Only called by the sequencer, in the order the changes were applied.
+     *
+     * @param after The sketch as of the change (the copy a client starting over from now on is sent).
+     */
+    private void send(WireMessage message, SketchServerSession from, long op, SketchVersion after)
+    {
+        WireMessage ack = from == null ? null : from.ack(op, message.getSeq());
+        history.add(message);
+        sent = after;
+        sentVersion = message.getSeq();
+
+        if (ticking)
+        {
+            tick.add(message);
+            tickFrom.add(ack == null ? null : from);
+            tickAcks.add(ack);
+        }
+
+        else
+            broadcast(message, ack == null ? null : from.getConnection(), ack);
+    }
+
+    /**
+     * Helper Method - Gets the changes held back onto the disk, unless that is already under way: a worker fsyncs
+     * everything logged so far (one fsync for however many changes are held), then the sequencer sends the ones it
+     * covered, and starts on any held back meanwhile. If the fsync fails, the held back changes are rolled back, as
+     * no client has heard of them. Only called by the sequencer.
+     */
+    private void syncHeld()
+    {
+        if (syncing || held.isEmpty())
+            return;
+
+        syncing = true;
+        long position = held.peekLast().position;
+        server.getWorkers().execute(() ->
+        {
+            try
+            {
+                log.awaitDurable(position);
+                sequencer.submit(() -> sendHeld(position));
+            }
+
+            catch (UncheckedIOException e)
+            {
+                System.err.println("Could Not Sync Log: " + e.getMessage());
+                sequencer.submit(this::dropHeld);
+            }
+        });
+    }
+
+    /**
+     * Helper Method - Sends the held back changes that are now on the disk (those up to a position in the log), in
+     * order. Only called by the sequencer.
+     */
+    private void sendHeld(long position)
+    {
+        syncing = false;
+        while (!held.isEmpty() && held.peek().position <= position)
+        {
+            Held change = held.poll();
+            send(change.message, change.from, change.op, change.after);
+        }
+
+        syncHeld();
+    }
+
+    /**
+     * Helper Method - Rolls back the held back changes, once the log has failed to get them onto the disk (back to
+     * the sketch as of the last change sent). Only called by the sequencer.
+     */
+    private void dropHeld()
+    {
+        syncing = false;
+        held.clear();
+        sketch.load(sent, sketch.IDIndex);
+        version = sentVersion;
+    }
+
+    /**
+     * Helper Method - Refuses a change if the log has failed (so it could never be on the disk).
+     *
+     * @throws UncheckedIOException If the log has failed.
+     */
+    private void checkLog()
+    {
+        if (log != null && log.hasFailed())
+            throw new UncheckedIOException(new IOException("Log has failed, so the room takes no more changes"));
+    }
+
+    /**
+     * Helper Method - Broadcasts the messages applied during the tick so far, as one BATCH. A client with changes of
+     * its own in the tick (and acknowledged) gets a BATCH of its own, with ACKs in place of them. Only called by the
+     * sequencer.
+     */
+    private void flushTick()
+    {
+        if (tick.isEmpty())
+            return;
+
+        WireMessage message = WireMessage.batch(tick, sentVersion);
+        Map<ClientConnection, WireMessage> acked = new HashMap<>();
+        for (SketchServerSession from : tickFrom)
+        {
+            if (from != null && !acked.containsKey(from.getConnection()))
+                acked.put(from.getConnection(), WireMessage.batch(ackedTick(from), sentVersion));
+        }
+
+        tick = new ArrayList<>();
+        tickFrom = new ArrayList<>();
+        tickAcks = new ArrayList<>();
+
+        for (ClientConnection communicator : communicators)
+            communicator.send(acked.getOrDefault(communicator, message));
+    }
+
+    /**
+     * Takes a client's pending resync, if it has one, along with the copy of the sketch to send it. The client's queue
+     * (emptied when the resync was asked for, and skipping everything since) starts taking messages again on the
+     * sequencer, between two changes, and the copy is the sketch as of the last change broadcast by then (see send),
+     * so it is exactly the changes before the ones the queue takes. The writer then encodes the copy a shape at a time as it
+     * streams it out (the version never changes, so this needs no lock), while changes carry on and queue up behind it.
+     * In tick mode, the held back messages are broadcast first, while the client is still marked as needing a resync
+     * (so it skips them, as they are already in the copy).
+     * A client picking up where it left off is instead sent the changes it missed, queued (by the sequencer) ahead of
+     * any that follow, as long as they are all still kept (and fit in its queue; if not, it gets a copy anyway).
+     *
+     * If the client's changes are acknowledged, the copy ends with an ACK for the last of them it includes.
+     *
+     * @param queue The client's outbound queue.
+     * @param session The client's session.
+     * @param resumeFrom The number of the last change the client has, if it is picking up where it left off (-1 if
+     *                   not).
+     * @return The copy of the sketch, or null if the client doesn't need one (or has been sent the changes instead).
+     */
+    public SketchServerSnapshot takeResync(OutboundQueue queue, SketchServerSession session, long resumeFrom)
+    {
+        if (!queue.needsResync())
+            return null;
+
+        return sequencer.call(() -> resync(queue, session, resumeFrom));
+    }
+
+    /**
+     * Takes a client's pending resync like takeResync, but without waiting for the sequencer to get to it, for a
+     * writer that must never block (an event loop, which has other clients to serve meanwhile).
+     *
+     * @param taken Given the copy of the sketch (or null, as takeResync returns), on the sequencer, once the resync
+     *              has been taken.
+     */
+    public void takeResync(OutboundQueue queue, SketchServerSession session, long resumeFrom,
+                           Consumer<SketchServerSnapshot> taken)
+    {
+        sequencer.submit(() ->
+        {
+            SketchServerSnapshot copy = null;
+            try
+            {
+                copy = resync(queue, session, resumeFrom);
+            }
+
+            finally
+            {
+                taken.accept(copy);
+            }
+        });
+    }
+
+    /**
+     * Helper Method - Takes a client's pending resync (see takeResync). Only called by the sequencer.
+     *
+     * @return The copy of the sketch, or null if the client doesn't need one.
+     */
+    private SketchServerSnapshot resync(OutboundQueue queue, SketchServerSession session, long resumeFrom)
+    {
+        if (ticking)
+            flushTick();
+
+        if (!queue.takeResync())
+            return null;
+
+        List<WireMessage> missed = resumeFrom < 0 ? null : history.since(resumeFrom);
+        if (missed == null)
+            return new SketchServerSnapshot(sentVersion, sent, session.lastAck());
+
+        server.getStats().resumes.incrementAndGet();
+        for (WireMessage message : missed)
+            queue.offer(message);
+
+        return null;
+    }
+
+    /**
+     * Sends the message from the one communicator to all in the room (including the originator, unless it is sent an
+     * ACK instead). The list is copy-on-write, so connections can come and go without holding up a broadcast, and they
+     * all share one WireMessage, so it is only encoded once. The message is only queued here; each client's writer
+     * writes it out.
+     *
+     * @param origin The connection to send the ACK to (null if none).
+     * @param ack The ACK (null if none).
+     */
+    private void broadcast(WireMessage message, ClientConnection origin, WireMessage ack)
+    {
+        for (ClientConnection communicator : communicators)
+        {
+            communicator.send(communicator == origin ? ack : message);
+        }
+    }
+
+    /**
+     * Helper Method - The messages of the tick so far, as a client sees them: with ACKs in place of its own changes.
+     */
+    private List<WireMessage> ackedTick(SketchServerSession from)
+    {
+        List<WireMessage> messages = new ArrayList<>(tick);
+        for (int i = 0; i < messages.size(); i += 1)
+        {
+            if (tickFrom.get(i) == from)
+                messages.set(i, tickAcks.get(i));
+        }
+
+        return messages;
+    }
+
+    /**
+     * Held - A change applied, but held back (along with its ACK) until it is on the disk.
+     */
+    private static class Held
+    {
+        WireMessage message; // The message for it.
+        SketchServerSession from; // The session of the client it came from (null if none).
+        long op; // Its number, for the client's ACK (0 if it isn't acknowledged).
+        long position; // Where it went in the log.
+        SketchVersion after; // The sketch as of the change.
+
+        Held(WireMessage message, SketchServerSession from, long op, long position, SketchVersion after)
+        {
+            this.message = message;
+            this.from = from;
+            this.op = op;
+            this.position = position;
+            this.after = after;
+        }
+    }
+
+    /**
+     * Copy - A copy of the sketch taken by the sequencer, to be written out as a checkpoint by another thread.
+     */
+    private static class Copy
+    {
+        SketchVersion sketch; // The shapes.
+        long version; // The number of changes they include.
+        int nextID; // The ID the next shape added will be given.
+
+        Copy(SketchVersion sketch, long version, int nextID)
+        {
+            this.sketch = sketch;
+            this.version = version;
+            this.nextID = nextID;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Sketch Server Sequencer - The one thread that changes a room's sketch (the single writer). The threads reading the
+ * clients' messages don't apply their changes themselves, under a lock they would all queue up on, but hand them over
+ * through a lock-free queue, and the sequencer applies them one at a time, in the order they were handed over: that
+ * order is the order everyone sees (each change is numbered, logged and queued for the clients as it is applied), and
+ * nothing else ever changes the sketch, so nothing needs locking against anything else. The readers are back to reading
+ * the next message as soon as the change is queued.
+ * Anything that has to happen at a definite point in the order of changes (a client being switched over to the
+ * changes after a copy of the sketch, a checkpoint, the end of a tick) is handed over the same way. A caller that needs
+ * to know how its change went (such as the ID a new shape was given) waits for it to be applied.
+ * The queue is bounded (roughly): a reader finds out whether there is room in it before it reads the next message, and
+ * if not, it stops reading until the sequencer has caught up (to half full), so a flood of changes slows down the
+ * clients sending them rather than piling up in memory. A reader thread parks until then (see awaitRoom), while an
+ * event loop, which has other clients to serve, just stops reading from that client and is told when to pick up again
+ * (see whenRoom). Handing over a change never waits, so the sequencer's own changes, and those of the threads working
+ * for it, can't get stuck behind the readers. The sequencer runs on a virtual thread, so a room costs next to nothing
+ * while it is quiet, and parks when the queue is empty (woken by the next change).
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public class SketchServerSequencer
+{
+    private ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>(); // Changes waiting to be applied.
+    private AtomicInteger waiting = new AtomicInteger(); // The number of them.
+    private int capacity; // How many may wait before the readers have to.
+    private ConcurrentLinkedQueue<Runnable> full = new ConcurrentLinkedQueue<>(); // Readers waiting for room, to wake.
+    private SketchServerStats stats; // Where to count the changes applied, and the waits for room in the queue.
+    private volatile boolean parked; // Whether the sequencer has run out of changes (and needs waking).
+    private String name; // The name of its thread.
+    private volatile Thread thread; // Null until started.
+
+    /**
+     * Sets up the sequencer (see start). Changes handed over before it starts wait for it.
+     *
+     * @param name The name of its thread.
+     * @param capacity How many changes may wait to be applied before the readers have to.
+     * @param stats Where to count the changes applied, and the waits for room in the queue.
+     */
+    public SketchServerSequencer(String name, int capacity, SketchServerStats stats)
+    {
+        this.name = name;
+        this.capacity = capacity;
+        this.stats = stats;
+    }
+
+    /**
+     * Starts the sequencer's thread.
+     */
+    public void start()
+    {
+        thread = Thread.ofVirtual().name(name).start(this::run);
+    }
+
+    /**
+     * Hands over a change, to be applied after every change handed over before it. Returns once it is queued, without
+     * waiting for room (the readers wait before reading the message, instead). If called by the sequencer itself, as
+     * part of a change, it is applied next.
+     *
+     * @param change Applies the change.
+     */
+    public void submit(Runnable change)
+    {
+        waiting.incrementAndGet();
+        queue.offer(change);
+
+        // Waking the sequencer if it has run out of changes (it looks at the queue again after saying so, so either it
+        // finds this change, or this finds it parked).
+        if (parked)
+            LockSupport.unpark(thread);
+    }
+
+    /**
+     * Hands over a change, and waits for it to be applied. Must not be called by the sequencer itself.
+     *
+     * @param change Applies the change, and returns how it went.
+     * @return What the change returned.
+     * @throws RuntimeException Whatever the change threw.
+     */
+    public <T> T call(Supplier<T> change)
+    {
+        if (Thread.currentThread() == thread)
+            throw new IllegalStateException("The sequencer can't wait for itself");
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        submit(() ->
+        {
+            try
+            {
+                result.complete(change.get());
+            }
+
+            catch (RuntimeException e)
+            {
+                result.completeExceptionally(e);
+            }
+        });
+
+        try
+        {
+            return result.join();
+        }
+
+        catch (CompletionException e)
+        {
+            throw (RuntimeException) e.getCause();
+        }
+    }
+
+    /**
+     * Whether there is room in the queue for the changes in another message. Readers that find room at the same moment
+     * can all go ahead, so the queue can go over by a message per reader, but no more.
+     */
+    public boolean hasRoom()
+    {
+        return waiting.get() < capacity;
+    }
+
+    /**
+     * Waits until there is room in the queue, for a reader thread about to read its next message. Must not be called
+     * by the sequencer itself, or an event loop (see whenRoom).
+     */
+    public void awaitRoom()
+    {
+        if (hasRoom())
+            return;
+
+        stats.sequencerWaits.incrementAndGet();
+        Thread reader = Thread.currentThread();
+        while (!hasRoom() && !reader.isInterrupted())
+        {
+            addReader(() -> LockSupport.unpark(reader));
+            LockSupport.park(this);
+        }
+    }
+
+    /**
+     * Has a reader that must not wait (an event loop) told once there is room in the queue, to pick up reading again.
+     *
+     * @param ready Tells the reader (on the sequencer, or straight away on this thread if there is room already).
+     */
+    public void whenRoom(Runnable ready)
+    {
+        stats.sequencerWaits.incrementAndGet();
+        addReader(ready);
+    }
+
+    /**
+     * Helper Method - Adds a reader to those waiting for room in the queue (or tells it straight away, if there is).
+     */
+    private void addReader(Runnable ready)
+    {
+        full.add(ready);
+
+        // Looking at the queue again after joining the readers waiting, so either the sequencer sees this reader as it
+        // drains the queue, or this sees there is room already.
+        if (hasRoom())
+            wake();
+    }
+
+    /**
+     * Whether the calling thread is the sequencer (the only thread allowed to change the room).
+     */
+    public boolean isCurrent()
+    {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Helper Method - Tells the readers waiting for room that there is some.
+     */
+    private void wake()
+    {
+        Runnable ready;
+        while (hasRoom() && (ready = full.poll()) != null)
+            ready.run();
+    }
+
+    /**
+     * Helper Method - Applies the changes, in order, as they are handed over (forever).
+     */
+    private void run()
+    {
+        while (true)
+        {
+            Runnable change = queue.poll();
+            if (change == null)
+            {
+                parked = true;
+                if (queue.isEmpty())
+                    LockSupport.park(this);
+
+                parked = false;
+                continue;
+            }
+
+            // Waking the readers waiting for room, once the queue is down to half full.
+            if (waiting.decrementAndGet() <= capacity / 2 && !full.isEmpty())
+                wake();
+
+            try
+            {
+                change.run();
+                stats.sequenced.incrementAndGet();
+            }
+
+            catch (RuntimeException e)
+            {
+                System.err.println("Could Not Apply Change: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+import java.awt.*;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sketch Server Session - The state the server keeps for one connection, between its messages: the stroke the client
+ * is drawing (if any), and which of its changes have been acknowledged.
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public class SketchServerSession implements MessageHandler
+{
+    private static final AtomicInteger relayIDs = new AtomicInteger(); // For numbering the sessions.
+
+    private SketchServerRoom room; // The room the client is in (to see whether it is following another server).
+    private SketchServerProtocol protocol; // Applying Messages With
+    private int relayID = relayIDs.incrementAndGet(); // The client, in messages forwarded to the server followed.
+    private ClientConnection connection; // The connection the messages come from (and ACKs go to).
+    private int[] stroke; // The stroke being drawn (null if none; see SketchServerProtocol.beginStroke).
+    private Color forwardedStroke; // The color of the stroke being drawn on the server followed (null if none).
+
+    private boolean acking; // Whether the client's changes are acknowledged.
+    private long received; // The number of the client's last MOVE, RECOLOR or DELETE.
+    private long acked; // The number of the last one applied (only changed and read by the room's sequencer).
+
+    public SketchServerSession(SketchServerRoom room, ClientConnection connection)
+    {
+        this.room = room;
+        protocol = room.getProtocol();
+        this.connection = connection;
+    }
+
+    public ClientConnection getConnection()
+    {
+        return connection;
+    }
+
+    public boolean isAcking()
+    {
+        return acking;
+    }
+
+    /**
+     * Starts acknowledging the client's changes (once it has asked to, in its HELLO).
+     */
+    public void startAcking()
+    {
+        acking = true;
+    }
+
+    /**
+     * The ACK for one of the client's changes, now that it has been applied, as the change to send the client in place
+     * of the message for it. To be called by the room's sequencer.
+     *
+     * @param op The change's number (0 if it isn't one of the client's numbered changes).
+     * @param seq The change's number in the room (see WireMessage).
+     * @return The ACK, or null if the client gets the message for the change like everyone else.
+     */
+    public WireMessage ack(long op, long seq)
+    {
+        if (!acking || op <= 0)
+            return null;
+
+        acked = op;
+        return WireMessage.ack(op, seq);
+    }
+
+    /**
+     * The ACK to end a copy of the sketch with (taken by the room's sequencer), so the client knows which of its
+     * changes the copy includes.
+     *
+     * @return The ACK, or null if the client isn't acknowledged.
+     */
+    public WireMessage lastAck()
+    {
+        return acking ? WireMessage.ack(acked, -1) : null;
+    }
+
+    @Override
+    public void handleAdd(Shape shape)
+    {
+        SketchServerUpstream upstream = room.getUpstream();
+        if (upstream != null)
+            upstream.forward(relayID, shape.appendTo(new StringBuilder("ADD ")).toString());
+        else
+            protocol.handleAdd(shape);
+    }
+
+    @Override
+    public void handleMove(int ID, int dx, int dy)
+    {
+        SketchServerUpstream upstream = room.getUpstream();
+        if (upstream != null)
+            upstream.forward(relayID, "MOVE " + ID + " " + dx + " " + dy);
+        else
+            protocol.handleMove(ID, dx, dy, this, number());
+    }
+
+    @Override
+    public void handleRecolor(int ID, Color color)
+    {
+        SketchServerUpstream upstream = room.getUpstream();
+        if (upstream != null)
+            upstream.forward(relayID, "RECOLOR " + ID + " " + color.getRGB());
+        else
+            protocol.handleRecolor(ID, color, this, number());
+    }
+
+    @Override
+    public void handleDelete(int ID)
+    {
+        SketchServerUpstream upstream = room.getUpstream();
+        if (upstream != null)
+            upstream.forward(relayID, "DELETE " + ID);
+        else
+            protocol.handleDelete(ID, this, number());
+    }
+
+    /**
+     * Helper Function - Starts a stroke (finishing any the client left open).
+     */
+    @Override
+    public void handleBeginStroke(int x, int y, Color color)
+    {
+        SketchServerUpstream upstream = room.getUpstream();
+        if (upstream != null)
+        {
+            upstream.forward(relayID, "BEGIN_STROKE " + x + " " + y + " " + color.getRGB());
+            forwardedStroke = color;
+            return;
+        }
+
+        handleEndStroke();
+        stroke = protocol.beginStroke(x, y, color);
+    }
+
+    /**
+     * Helper Function - Adds points to the client's stroke.
+     */
+    @Override
+    public void handleAppendPoints(int[] coordinates, int count)
+    {
+        SketchServerUpstream upstream = room.getUpstream();
+        if (upstream != null)
+        {
+            StringBuilder msg = new StringBuilder("APPEND_POINTS");
+            for (int i = 0; i < count; i += 1)
+                msg.append(' ').append(coordinates[i]);
+
+            upstream.forward(relayID, msg.toString());
+            return;
+        }
+
+        // Carrying on with a stroke cut off by the room being promoted, as a new stroke starting at the first point.
+        if (stroke == null && forwardedStroke != null && count >= 2)
+        {
+            stroke = protocol.beginStroke(coordinates[0], coordinates[1], forwardedStroke);
+            forwardedStroke = null;
+            coordinates = Arrays.copyOfRange(coordinates, 2, count);
+            count -= 2;
+        }
+
+        if (stroke == null)
+            throw new MalformedMessageException("APPEND_POINTS without BEGIN_STROKE");
+
+        if (count > 0)
+            protocol.appendPoints(stroke, coordinates, count);
+    }
+
+    /**
+     * Helper Function - Finishes the client's stroke (if it has one).
+     */
+    @Override
+    public void handleEndStroke()
+    {
+        SketchServerUpstream upstream = room.getUpstream();
+        if (upstream != null)
+        {
+            upstream.forward(relayID, "END_STROKE");
+            forwardedStroke = null;
+            return;
+        }
+
+        forwardedStroke = null;
+        if (stroke == null)
+            return;
+
+        protocol.endStroke(stroke);
+        stroke = null;
+    }
+
+    /**
+     * Clean Up - Finishes whatever the client left open, once the connection has closed (or tells the server followed
+     * that the client has gone, so it does). If the room's log has failed, the stroke is left as it is.
+     */
+    public void end()
+    {
+        SketchServerUpstream upstream = room.getUpstream();
+        if (upstream != null)
+        {
+            upstream.leave(relayID);
+            return;
+        }
+
+        try
+        {
+            handleEndStroke();
+        }
+
+        catch (UncheckedIOException e)
+        {
+            // The room takes no more changes.
+        }
+    }
+
+    /**
+     * Helper Method - Numbers the client's next MOVE, RECOLOR or DELETE (if it is being acknowledged).
+     *
+     * @return The number, or 0 if the client isn't acknowledged.
+     */
+    private long number()
+    {
+        if (!acking)
+            return 0;
+
+        received += 1;
+        return received;
+    }
+}
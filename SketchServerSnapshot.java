@@ -0,0 +1,141 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Sketch Server Snapshot - A copy of the sketch on its way out to one client (when it first connects, or after it has
+ * fallen too far behind), as of a version of the sketch: a RESET, then an ADD_ID for every shape. The copy is taken in
+ * one go (see SketchServerRoom.takeResync), but written out a chunk at a time, between which the writer can look for a
+ * newer resync. Each ADD_ID is encoded straight from its shape as it is written (and the shape let go of), so even a
+ * big sketch costs the writer a bounded buffer.
+ * Only used by the writer of the one client.
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public class SketchServerSnapshot
+{
+    public static final int CHUNK_SIZE = 65536; // About how many bytes to write at a time.
+
+    private long version; // The number of changes the copy includes.
+    private SketchVersion sketch; // The copy, until its shapes are taken out of it (by the first chunk).
+    private int[] IDs; // The IDs of the shapes.
+    private Shape[] shapes; // The shapes, let go of (set to null) as they are written.
+    private WireMessage ack; // The ACK to end with (null if none).
+    private int next = -1; // The next shape to write (-1 for the RESET, and the number of shapes for the ACK).
+    private StringBuilder text = new StringBuilder(); // Reused for every ADD_ID written as text.
+    private ByteArrayOutputStream frame = new ByteArrayOutputStream(); // Reused for every ADD_ID written as binary.
+
+    /**
+     * Sets up the copy, which is only gone through once the writer starts on it (so the room's sequencer, which takes
+     * it, isn't held up).
+     *
+     * @param version The number of changes the copy includes.
+     * @param sketch The copy (a version of the sketch, taken by the room's sequencer).
+     * @param ack The ACK to end with, for a client whose changes are acknowledged (null if none).
+     */
+    public SketchServerSnapshot(long version, SketchVersion sketch, WireMessage ack)
+    {
+        this.version = version;
+        this.sketch = sketch;
+        this.ack = ack;
+    }
+
+    public long getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Whether all of the copy has been written.
+     */
+    public boolean isDone()
+    {
+        return sketch == null && next == shapes.length + 1;
+    }
+
+    /**
+     * Writes the next chunk of the copy: about CHUNK_SIZE bytes of messages (at least one), starting with the RESET.
+     *
+     * @param out Where to write the chunk.
+     * @param binary Whether the client has switched to the binary protocol.
+     */
+    public void writeChunk(OutputStream out, boolean binary) throws IOException
+    {
+        int written = 0;
+
+        if (next == -1)
+        {
+            takeShapes();
+
+            byte[] reset = new WireMessage("RESET").encode(binary);
+            out.write(reset);
+            written += reset.length;
+            next = 0;
+        }
+
+        while (next < shapes.length && written < CHUNK_SIZE)
+        {
+            written += binary ? writeBinary(out, IDs[next], shapes[next]) : writeText(out, IDs[next], shapes[next]);
+            shapes[next] = null;
+            next += 1;
+        }
+
+        if (next == shapes.length)
+        {
+            if (ack != null)
+                out.write(ack.encode(binary));
+
+            next += 1;
+        }
+    }
+
+    /**
+     * Helper Method - Takes the shapes (and their IDs) out of the copy, in the order they are to be written.
+     */
+    private void takeShapes()
+    {
+        IDs = new int[sketch.size()];
+        shapes = new Shape[sketch.size()];
+        int[] count = new int[1];
+        sketch.forEach((shape, ID) ->
+        {
+            IDs[count[0]] = ID;
+            shapes[count[0]] = shape;
+            count[0] += 1;
+        });
+
+        sketch = null;
+    }
+
+    /**
+     * Helper Method - Writes an ADD_ID as a text line.
+     *
+     * @return The number of bytes written.
+     */
+    private int writeText(OutputStream out, int ID, Shape shape) throws IOException
+    {
+        text.setLength(0);
+        shape.appendTo(text.append("ADD_ID ").append(ID).append(' ')).append('\n');
+
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        out.write(bytes);
+        return bytes.length;
+    }
+
+    /**
+     * Helper Method - Writes an ADD_ID as a binary frame.
+     *
+     * @return The number of bytes written (not counting the frame's length).
+     */
+    private int writeBinary(OutputStream out, int ID, Shape shape) throws IOException
+    {
+        frame.reset();
+        frame.write(Operation.ADD_ID.opcode);
+        BinaryProtocol.writeVarint(frame, ID);
+        shape.writeTo(frame);
+
+        BinaryProtocol.writeFrame(out, frame);
+        return frame.size();
+    }
+}
@@ -0,0 +1,35 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sketch Server Stats - Counters for what happens to the messages the server sends out, in particular how slow
+ * consumers are being handled. Printed every so often if the server is started with --stats.
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public class SketchServerStats
+{
+    public final AtomicLong queued = new AtomicLong(); // Messages queued for a client.
+    public final AtomicLong dropped = new AtomicLong(); // Queued messages thrown away in favor of a resync.
+    public final AtomicLong coalesced = new AtomicLong(); // MOVEs folded into one already queued.
+    public final AtomicLong resyncs = new AtomicLong(); // Fresh copies of the sketch sent to a client.
+    public final AtomicLong resumes = new AtomicLong(); // Reconnecting clients sent just the changes they missed.
+    public final AtomicLong disconnects = new AtomicLong(); // Clients dropped for being too slow.
+    public final AtomicLong movesMerged = new AtomicLong(); // Incoming MOVEs added into one held back for the shape.
+    public final AtomicLong strokePoints = new AtomicLong(); // Points in the freehand strokes added.
+    public final AtomicLong strokePointsKept = new AtomicLong(); // Points left in them after simplifying.
+    public final AtomicLong logged = new AtomicLong(); // Changes appended to the log.
+    public final AtomicLong fsyncs = new AtomicLong(); // Times the log was forced onto the disk.
+    public final AtomicLong sequenced = new AtomicLong(); // Changes applied by the rooms' sequencers.
+    public final AtomicLong sequencerWaits = new AtomicLong(); // Times a reader had to wait for room in a sequencer.
+
+    @Override
+    public String toString()
+    {
+        return "queued " + queued + ", dropped " + dropped + ", coalesced " + coalesced
+                + ", resyncs " + resyncs + ", resumes " + resumes + ", slow disconnects " + disconnects
+                + ", moves merged " + movesMerged
+                + ", stroke points kept " + strokePointsKept + "/" + strokePoints
+                + ", logged " + logged + " in " + fsyncs + " fsyncs"
+                + ", sequenced " + sequenced + " (waited for room " + sequencerWaits + " times)";
+    }
+}
@@ -0,0 +1,432 @@
+import java.awt.*;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Sketch Server Upstream - A follower server's connection to the primary, for one room. The follower connects to the
+ * primary like an editor, on text, with the resume and follower capabilities (see Handshake), and is sent a copy of the
+ * room's sketch and then every change after it, in the primary's order. Each change is applied to the follower's room
+ * (by its sequencer, like any other change) and passed on to the follower's clients as it is, numbered just as the
+ * primary numbered it, so the follower's sketch is the primary's, one change at a time, and a client can pick up where
+ * it left off on either server.
+ * The follower's clients' messages are forwarded to the primary, each with the client it came from (see
+ * SketchServerRelay), and their changes come back in the primary's stream like everyone else's. Anything forwarded
+ * while the primary is out of reach is lost (as it is for an editor whose connection has dropped), and the changes
+ * aren't acknowledged (the follower doesn't offer its clients ACKs).
+ * When the connection drops, the follower reconnects (to the first of the primary's addresses that answers, which may
+ * be another follower of it) and picks up from the last change it has, or starts over from a fresh copy if that is too
+ * long ago. If it can't reach any of them for the failover time (once it has had a copy of the sketch), it takes the
+ * primary to be dead, and promotes the follower (every room of it) to be a primary itself. Only one follower of a
+ * primary should fail over, or each would carry on as a primary of its own; the rest can list it as the next address
+ * to try, and follow it instead.
+ * A stroke in progress at failover is cut off: the follower keeps as much of it as had come back from the primary,
+ * and the client's next points start a new stroke on the promoted server (see SketchServerSession).
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public class SketchServerUpstream implements Runnable, MessageHandler
+{
+    private static final int CONNECT_TIMEOUT = 1000; // How long to wait for each of the primary's addresses to answer.
+
+    private SketchServerRoom room; // The room following the primary.
+    private String[] primaries; // The primary's address ("host:port"), followed by any others to try in turn.
+    private int failover; // How long the primary can be out of reach before promoting, in milliseconds (0 for never).
+    private Runnable promote; // Promotes the follower.
+
+    private volatile boolean stopped; // Whether the follower has been promoted (and so stopped following).
+    private volatile boolean connected; // Whether there is a connection to forward the clients' messages over.
+    private Socket socket; // To The Primary
+    private Thread writer; // Writes out the forwarded messages.
+    private LinkedBlockingQueue<String> outgoing = new LinkedBlockingQueue<>(); // Forwarded, but not yet written.
+
+    // Reading - Where the follower is in the primary's changes, as the reader hands them to the room.
+    private WireReader in; // From The Primary
+    private MessageDecoder decoder = new MessageDecoder();
+    private String line; // The message being handled (passed on to the follower's clients as it is, if an ADD).
+    private boolean skipping; // Whether to ignore what the primary sends until its WELCOME.
+    private long welcomed; // The primary's epoch, from its WELCOME.
+    private long epoch; // The epoch of the changes the follower has.
+    private long seq = -1; // The number of the last change the follower has (-1 for none).
+    private Sketch loading; // The copy of the sketch arriving (null if none).
+    private boolean caughtUp; // Whether the follower has ever had a copy of the sketch (so can be promoted).
+
+    /**
+     * @param room The room following the primary.
+     * @param primaries The primary's address ("host:port"), followed by any others to try in turn.
+     * @param failover How long the primary can be out of reach before promoting, in milliseconds (0 for never).
+     * @param promote Promotes the follower.
+     */
+    public SketchServerUpstream(SketchServerRoom room, String[] primaries, int failover, Runnable promote)
+    {
+        this.room = room;
+        this.primaries = primaries;
+        this.failover = failover;
+        this.promote = promote;
+    }
+
+    /**
+     * Forwards a message from one of the follower's clients to the primary (or drops it, if there is no connection).
+     *
+     * @param client The client's relay ID.
+     */
+    public void forward(int client, String msg)
+    {
+        if (connected)
+            outgoing.offer("FROM " + client + " " + msg);
+    }
+
+    /**
+     * Tells the primary that one of the follower's clients has gone, so it finishes whatever the client left open.
+     *
+     * @param client The client's relay ID.
+     */
+    public void leave(int client)
+    {
+        if (connected)
+            outgoing.offer("LEFT " + client);
+    }
+
+    /**
+     * Stops following the primary (once the follower has been promoted).
+     */
+    public void stop()
+    {
+        stopped = true;
+        connected = false;
+        close();
+    }
+
+    /**
+     * Keeps following the primary, reconnecting whenever the connection drops, until it has been out of reach for the
+     * failover time (when it promotes the follower) or the follower has been promoted.
+     */
+    public void run()
+    {
+        long lost = System.currentTimeMillis(); // When the primary was last reachable.
+
+        for (int wait = 250; !stopped; wait = Math.min(2 * wait, 2000))
+        {
+            if (connect())
+            {
+                wait = 250;
+                read();
+                lost = System.currentTimeMillis();
+            }
+
+            if (stopped)
+                return;
+
+            if (caughtUp && failover > 0 && System.currentTimeMillis() - lost >= failover)
+            {
+                System.out.println("Primary Out Of Reach For " + failover + " ms");
+                promote.run();
+                return;
+            }
+
+            try
+            {
+                Thread.sleep(wait);
+            }
+
+            catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Helper Method - Connects to the first of the primary's addresses that answers, asks to pick up from the last
+     * change the follower has (a fresh copy of the sketch, if it has none), and starts the writer.
+     *
+     * @return Whether any of them answered.
+     */
+    private boolean connect()
+    {
+        for (String primary : primaries)
+        {
+            int colon = primary.lastIndexOf(':');
+            Socket next = new Socket();
+
+            try
+            {
+                next.connect(new InetSocketAddress(primary.substring(0, colon),
+                        Integer.parseInt(primary.substring(colon + 1))), CONNECT_TIMEOUT);
+                in = new WireReader(next.getInputStream());
+                OutputStream out = new BufferedOutputStream(next.getOutputStream());
+
+                // The HELLO goes out before anything forwarded (and everything before the WELCOME is ignored, as the
+                // primary starts sending a copy of the sketch before it has had the HELLO).
+                out.write(new WireMessage(Handshake.follow(room.getName(), epoch + ":" + seq)).encode(false));
+                out.flush();
+                skipping = true;
+                loading = null;
+
+                synchronized (this)
+                {
+                    if (stopped)
+                    {
+                        next.close();
+                        return false;
+                    }
+
+                    socket = next;
+                    outgoing.clear();
+                    writer = Thread.ofVirtual().start(() -> write(out));
+                    connected = true;
+                }
+
+                System.out.println("Following " + primary + (room.getName().isEmpty() ? "" : " (room " + room.getName()
+                        + ")"));
+                return true;
+            }
+
+            catch (IOException | RuntimeException e)
+            {
+                System.err.println("Could Not Reach " + primary + ": " + e.getMessage());
+                closeQuietly(next);
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Helper Method - Keeps reading and applying the primary's changes until the connection drops. Anything the
+     * follower can't make sense of means it may have missed a change, so it drops the connection and starts over from a
+     * fresh copy.
+     */
+    private void read()
+    {
+        try
+        {
+            while (in.readLine())
+            {
+                if (in.startsWith("HELLO "))
+                    continue;
+
+                if (in.startsWith("WELCOME "))
+                {
+                    handleWelcome(in.getText());
+                    continue;
+                }
+
+                if (skipping)
+                    continue;
+
+                // Waiting for the room's sequencer to have room for the change (see SketchServerSequencer).
+                room.awaitRoom();
+
+                line = in.getText();
+                try
+                {
+                    decoder.decodeText(in.getBytes(), 0, in.getLength(), this);
+                }
+
+                catch (MalformedMessageException e)
+                {
+                    System.err.println("Invalid message from primary: " + e.getMessage());
+                    seq = -1;
+                    break;
+                }
+            }
+        }
+
+        catch (IOException | UncheckedIOException e) // Or the follower's log has failed, so it can't take the change.
+        {
+            if (!stopped)
+                System.err.println(e.getMessage());
+        }
+
+        if (!stopped)
+            System.out.println("Primary Hung Up");
+
+        connected = false;
+        close();
+    }
+
+    /**
+     * Helper Method - Takes in the primary's WELCOME, which says which epoch its changes are numbered in. It sends
+     * either the changes after the follower's last one, or a RESET and a fresh copy of the sketch.
+     */
+    private void handleWelcome(String welcome) throws IOException
+    {
+        String resume = Handshake.getResume(welcome);
+        if (resume == null || resume.isEmpty())
+            throw new IOException("Primary doesn't number its changes");
+
+        try
+        {
+            welcomed = Long.parseLong(resume);
+        }
+
+        catch (NumberFormatException e)
+        {
+            throw new IOException("Invalid epoch from primary: " + resume);
+        }
+
+        skipping = false;
+    }
+
+    /**
+     * Helper Method - Keeps writing out the forwarded messages, flushing whenever it runs out of them, until the
+     * connection is closed.
+     */
+    private void write(OutputStream out)
+    {
+        try
+        {
+            while (!Thread.currentThread().isInterrupted())
+            {
+                String msg = outgoing.poll();
+                if (msg == null)
+                {
+                    out.flush();
+                    msg = outgoing.take();
+                }
+
+                out.write(new WireMessage(msg).encode(false));
+            }
+        }
+
+        catch (IOException | InterruptedException e)
+        {
+            // The connection has closed (and the reader reconnects).
+        }
+    }
+
+    /**
+     * Helper Method - Closes the connection (which wakes up the reader), and stops its writer.
+     */
+    private synchronized void close()
+    {
+        if (writer != null)
+            writer.interrupt();
+
+        if (socket != null)
+            closeQuietly(socket);
+
+        writer = null;
+        socket = null;
+    }
+
+    /**
+     * Helper Method - Closes a socket, if it isn't already.
+     */
+    private static void closeQuietly(Socket socket)
+    {
+        try
+        {
+            socket.close();
+        }
+
+        catch (IOException e)
+        {
+            // Closing anyway.
+        }
+    }
+
+    /**
+     * Helper Method - Applies one of the primary's changes to the room (on its sequencer), and passes it on to the
+     * room's clients, as the change after the last one.
+     */
+    private void apply(Runnable change, WireMessage msg)
+    {
+        if (loading != null || seq < 0)
+            throw new MalformedMessageException("Change without a copy of the sketch");
+
+        room.update(change, msg);
+        seq += 1;
+    }
+
+    @Override
+    public void handleAdd(Shape shape)
+    {
+        apply(() -> room.getSketch().addShape(shape), new WireMessage(line));
+    }
+
+    /**
+     * Helper Function - Adds (or replaces) a shape, or adds it to the copy of the sketch arriving.
+     */
+    @Override
+    public void handleAddID(int ID, Shape shape)
+    {
+        if (loading != null)
+            loading.addShape(ID, shape);
+        else
+            apply(() -> room.getSketch().addShape(ID, shape), WireMessage.addID(ID, shape));
+    }
+
+    @Override
+    public void handleMove(int ID, int dx, int dy)
+    {
+        apply(() -> room.getSketch().moveShape(ID, dx, dy), WireMessage.move(ID, dx, dy));
+    }
+
+    @Override
+    public void handleRecolor(int ID, Color color)
+    {
+        apply(() -> room.getSketch().recolorShape(ID, color), WireMessage.recolor(ID, color));
+    }
+
+    @Override
+    public void handleDelete(int ID)
+    {
+        apply(() -> room.getSketch().deleteShape(ID), WireMessage.delete(ID));
+    }
+
+    /**
+     * Helper Function - Adds points to a stroke (with a copy of them, as the decoder reuses its array).
+     */
+    @Override
+    public void handleAppendPointsID(int ID, int[] coordinates, int count)
+    {
+        int[] points = Arrays.copyOf(coordinates, count);
+        apply(() -> room.getSketch().appendPoints(ID, points, count), WireMessage.appendPointsID(ID, points, count));
+    }
+
+    /**
+     * Helper Function - Starts taking in a fresh copy of the sketch, which the room starts over from once all of it
+     * has arrived (at the SEQ after it).
+     */
+    @Override
+    public void handleReset()
+    {
+        loading = new Sketch();
+    }
+
+    /**
+     * Helper Function - The changes in a batch are applied (and numbered) one by one, like any others.
+     */
+    @Override
+    public void handleBatch(int count)
+    {
+        // Nothing to do until they arrive.
+    }
+
+    /**
+     * Helper Function - Starts the room over from the copy of the sketch that has just arrived, as of the change the
+     * SEQ gives; or else checks that the follower is where the primary says it is.
+     */
+    @Override
+    public void handleSeq(long seq)
+    {
+        if (loading == null)
+        {
+            if (seq != this.seq)
+                throw new MalformedMessageException("Out of step with the primary (" + this.seq + ", not " + seq + ")");
+
+            return;
+        }
+
+        room.startOver(welcomed, loading.getVersion(), loading.IDIndex, seq);
+        System.out.println("Copied version " + seq + " (" + loading.getVersion().size() + " shapes) from the primary");
+        epoch = welcomed;
+        this.seq = seq;
+        loading = null;
+        caughtUp = true;
+    }
+}
@@ -0,0 +1,128 @@
+import java.awt.*;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Sketch Version - The shapes in a sketch as they were at one point, which never changes. A sketch publishes a new
+ * version after each change (see Sketch), so whatever is reading the sketch (painting it, finding the shape under a
+ * click, or copying it out to a client) can take the latest version and work with it for as long as it likes, with no
+ * locks, and never see it part way through a change.
+ * The shapes are kept in a PersistentMap, and their cells in a ShapeGrid, which are never changed either: a new
+ * version shares all but the few entries a change touched with the version before it, so publishing one costs about as
+ * much as the change itself. The shapes in a version are never changed in place (a change to a shape is made to a copy
+ * of it, in the next version).
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public class SketchVersion
+{
+    public static final SketchVersion EMPTY = new SketchVersion(PersistentMap.empty(), ShapeGrid.EMPTY);
+
+    private final PersistentMap<Shape> shapes; // ID -> shape.
+    private final ShapeGrid grid; // Where the shapes are.
+
+    private SketchVersion(PersistentMap<Shape> shapes, ShapeGrid grid)
+    {
+        this.shapes = shapes;
+        this.grid = grid;
+    }
+
+    /**
+     * The number of shapes.
+     */
+    public int size()
+    {
+        return shapes.size();
+    }
+
+    /**
+     * Get Shape - A shape, depending on its ID. The shape must not be changed.
+     *
+     * @param ID The ID of the shape.
+     * @return The shape, or null if there is no such shape.
+     */
+    public Shape getShape(int ID)
+    {
+        return shapes.get(ID);
+    }
+
+    /**
+     * Get Bounds - The bounds of a shape, depending on its ID.
+     *
+     * @param ID The ID of the shape.
+     * @return The bounds, or null if there is no such shape.
+     */
+    public java.awt.Rectangle getBounds(int ID)
+    {
+        Shape shape = shapes.get(ID);
+        return shape == null ? null : shape.getBounds();
+    }
+
+    /**
+     * Determines which shape is clicked by its ID: the topmost one (drawn last) containing the point.
+     *
+     * @param p The point to consider.
+     * @return The ID, or -1 to indicate that no shape was found.
+     */
+    public int IDFromClicked(Point p)
+    {
+        return grid.find(p.x, p.y, shapes);
+    }
+
+    /**
+     * Draw Area - Draws the shapes that overlap an area (in ID order, so later shapes are on top), found through the
+     * grid rather than by asking every shape.
+     *
+     * @param g The graphics to draw with.
+     * @param area The area.
+     * @param excludedID The ID of a shape to leave out (such as one being dragged, drawn separately), or -1.
+     */
+    public void drawArea(Graphics g, java.awt.Rectangle area, int excludedID)
+    {
+        for (int ID : grid.overlapping(area))
+        {
+            Shape shape = shapes.get(ID);
+            if (ID != excludedID && shape.getBounds().intersects(area))
+                shape.draw(g);
+        }
+    }
+
+    /**
+     * Goes through every shape (in no particular order).
+     *
+     * @param action Given each shape, and its ID. The shapes must not be changed.
+     */
+    public void forEach(ObjIntConsumer<Shape> action)
+    {
+        shapes.forEach((shape, ID) -> action.accept(shape, (int) ID));
+    }
+
+    /**
+     * A version with a shape added (in place of any with the same ID). Its bounds are worked out (and cached by the
+     * shape) here, before the version is published.
+     *
+     * @param ID The ID of the shape.
+     * @param shape The shape, which from now on must not be changed.
+     * @return The new version.
+     */
+    public SketchVersion with(int ID, Shape shape)
+    {
+        Shape old = shapes.get(ID);
+        ShapeGrid newGrid = old == null ? grid : grid.remove(ID, old);
+        return new SketchVersion(shapes.put(ID, shape), newGrid.add(ID, shape));
+    }
+
+    /**
+     * A version without a shape.
+     *
+     * @param ID The ID of the shape.
+     * @return The new version (this one, if there is no such shape).
+     */
+    public SketchVersion without(int ID)
+    {
+        Shape old = shapes.get(ID);
+        if (old == null)
+            return this;
+
+        return new SketchVersion(shapes.remove(ID), grid.remove(ID, old));
+    }
+}
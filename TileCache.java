@@ -0,0 +1,159 @@
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tile Cache - The editor's sketch, already drawn, as a grid of offscreen image tiles. Painting the canvas is then a
+ * matter of copying a few tiles onto it, rather than drawing every shape again; a tile is only redrawn after a change
+ * to the sketch touches it (an ADD, MOVE, RECOLOR or DELETE), and then only the shapes overlapping it are drawn.
+ * Anything that changes from one frame to the next (the shape being drawn, or the one being dragged) is left out of
+ * the tiles, and drawn on top of them.
+ * The editor's event thread draws with the tiles, while the communicator invalidates them as the sketch changes, and
+ * neither waits on the other: the tiles are kept in a concurrent map, and each invalidation (made after the change is
+ * published) is counted. A tile is drawn from the latest version of the sketch (see SketchVersion), and kept only if
+ * nothing was invalidated while it was being drawn, so a tile drawn from the sketch as it was just before a change can
+ * never outlive that change. All the tiles drawn for one paint are drawn from the same version.
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public class TileCache
+{
+    public static final int TILE_SIZE = 256; // Width and height of a tile, in pixels.
+
+    private Sketch sketch; // The sketch the tiles are drawn from.
+    private ConcurrentHashMap<Long, BufferedImage> tiles = new ConcurrentHashMap<>(); // Tile -> its image (if drawn).
+    private AtomicLong invalidations = new AtomicLong(); // The number of invalidations so far.
+
+    public TileCache(Sketch sketch)
+    {
+        this.sketch = sketch;
+    }
+
+    /**
+     * Draws the part of the sketch in an area, from the tiles (redrawing any that need it).
+     *
+     * @param g The graphics to draw with.
+     * @param area The area to draw (within the canvas, so only the tiles that can be seen are drawn).
+     * @param excludedID The ID of a shape being drawn separately (on top), to leave out of the tiles, or -1.
+     */
+    public void draw(Graphics g, java.awt.Rectangle area, int excludedID)
+    {
+        // Counting the invalidations before taking the version, so any made since it was published are seen.
+        long invalidated = invalidations.get();
+        SketchVersion version = sketch.getVersion();
+        for (int tx = tile(area.x); tx <= lastTile(area.x, area.width); tx += 1)
+        {
+            for (int ty = tile(area.y); ty <= lastTile(area.y, area.height); ty += 1)
+            {
+                BufferedImage image = tiles.get(key(tx, ty));
+                if (image == null)
+                {
+                    image = render(version, tx, ty, excludedID);
+                    keep(key(tx, ty), image, invalidated);
+                }
+
+                g.drawImage(image, tx * TILE_SIZE, ty * TILE_SIZE, null);
+            }
+        }
+    }
+
+    /**
+     * Throws away the tiles an area overlaps, so that they are redrawn the next time they are needed. To be called
+     * after the change to the sketch in that area. A shape can be far bigger than the canvas, so an area covering more
+     * tiles than are cached is handled by going through the cached tiles instead.
+     *
+     * @param area The area that changed (null for everywhere).
+     */
+    public void invalidate(java.awt.Rectangle area)
+    {
+        invalidations.incrementAndGet();
+
+        if (area == null)
+        {
+            tiles.clear();
+            return;
+        }
+
+        int firstX = tile(area.x), lastX = lastTile(area.x, area.width);
+        int firstY = tile(area.y), lastY = lastTile(area.y, area.height);
+        if (lastX < firstX || lastY < firstY)
+            return;
+
+        // Throwing away the cached tiles in the area, if there are fewer of them than tiles in the area.
+        if ((long) (lastX - firstX + 1) * (lastY - firstY + 1) > tiles.size())
+        {
+            tiles.keySet().removeIf(key ->
+            {
+                int tx = (int) (key >> 32), ty = (int) (long) key;
+                return tx >= firstX && tx <= lastX && ty >= firstY && ty <= lastY;
+            });
+
+            return;
+        }
+
+        for (int tx = firstX; tx <= lastX; tx += 1)
+        {
+            for (int ty = firstY; ty <= lastY; ty += 1)
+                tiles.remove(key(tx, ty));
+        }
+    }
+
+    /**
+     * Helper Method - Keeps a tile just drawn, unless anything has been invalidated since the version it was drawn from
+     * was taken (as it may have been drawn from before the change). It is put in first, and taken out again if so, so
+     * an invalidation made meanwhile either sees it (and throws it away itself), or is counted by then.
+     *
+     * @param invalidated The number of invalidations when the version was taken.
+     */
+    private void keep(long key, BufferedImage image, long invalidated)
+    {
+        tiles.put(key, image);
+        if (invalidations.get() != invalidated)
+            tiles.remove(key, image);
+    }
+
+    /**
+     * Helper Method - Draws a tile: the shapes overlapping it (in a version of the sketch), on a transparent background.
+     */
+    private BufferedImage render(SketchVersion version, int tx, int ty, int excludedID)
+    {
+        BufferedImage image = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+
+        // Drawing in canvas coordinates, so the shapes can draw themselves as usual.
+        g.translate(-tx * TILE_SIZE, -ty * TILE_SIZE);
+        java.awt.Rectangle area = new java.awt.Rectangle(tx * TILE_SIZE, ty * TILE_SIZE, TILE_SIZE, TILE_SIZE);
+        g.setClip(area);
+
+        version.drawArea(g, area, excludedID);
+        g.dispose();
+        return image;
+    }
+
+    /**
+     * Helper Method - The tile (along one axis) a coordinate falls in.
+     */
+    private static int tile(int coordinate)
+    {
+        return Math.floorDiv(coordinate, TILE_SIZE);
+    }
+
+    /**
+     * Helper Method - The last tile (along one axis) a span of coordinates falls in (before the first, if it is
+     * empty). Worked out in longs, as the end of the span may be past the largest int.
+     */
+    private static int lastTile(int coordinate, int size)
+    {
+        return (int) Math.floorDiv((long) coordinate + size - 1, TILE_SIZE);
+    }
+
+    /**
+     * Helper Method - The key for a tile, packing its two indices into one long.
+     */
+    private static long key(int tx, int ty)
+    {
+        return ((long) tx << 32) | (ty & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,198 @@
+import java.awt.Color;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Wire Message - One message on its way out to clients. A broadcast creates a single one of these and queues it for
+ * every client, so the message is encoded at most once per wire format (and only if some client uses that format),
+ * however many clients there are. A message made from a change's fields (addID, move and so on) is encoded as binary
+ * straight from them, rather than by parsing its own text.
+ * A message for a change to a room's sketch carries the change's number (its version of the sketch; see
+ * SketchServerRoom), so a client's writer knows which changes the client has, and can tell the client (see SEQ).
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public class WireMessage
+{
+    private final String text; // The message, in the text protocol.
+    private final long seq; // The number of the (last) change in the message (-1 if not a change, or not known).
+    private final int count; // The number of changes in the message (more than one for a batch).
+    private final Supplier<byte[]> fields; // Encodes the message as binary from its fields (null to encode its text).
+    private volatile byte[] textBytes, binaryBytes; // Encodings, filled in the first time they are needed.
+
+    public WireMessage(String text)
+    {
+        this(text, -1, 1, null);
+    }
+
+    public WireMessage(String text, long seq)
+    {
+        this(text, seq, 1, null);
+    }
+
+    private WireMessage(String text, long seq, int count, Supplier<byte[]> fields)
+    {
+        this.text = text;
+        this.seq = seq;
+        this.count = count;
+        this.fields = fields;
+    }
+
+    /**
+     * An ADD_ID: a shape, with the ID it was given (or the ID of the shape it replaces). The shape must not be changed
+     * afterwards (as no shape in a sketch is, see SketchVersion), as it may be encoded later.
+     */
+    public static WireMessage addID(int ID, Shape shape)
+    {
+        String text = shape.appendTo(new StringBuilder("ADD_ID ").append(ID).append(' ')).toString();
+        return new WireMessage(text, -1, 1, () -> BinaryProtocol.encode(Operation.ADD_ID, out ->
+        {
+            BinaryProtocol.writeVarint(out, ID);
+            shape.writeTo(out);
+        }));
+    }
+
+    public static WireMessage move(int ID, int dx, int dy)
+    {
+        return new WireMessage("MOVE " + ID + " " + dx + " " + dy, -1, 1, () -> BinaryProtocol.encode(Operation.MOVE,
+                out ->
+                {
+                    BinaryProtocol.writeVarint(out, ID);
+                    BinaryProtocol.writeSigned(out, dx);
+                    BinaryProtocol.writeSigned(out, dy);
+                }));
+    }
+
+    public static WireMessage recolor(int ID, Color color)
+    {
+        int rgb = color.getRGB();
+        return new WireMessage("RECOLOR " + ID + " " + rgb, -1, 1, () -> BinaryProtocol.encode(Operation.RECOLOR,
+                out ->
+                {
+                    BinaryProtocol.writeVarint(out, ID);
+                    BinaryProtocol.writeInt(out, rgb);
+                }));
+    }
+
+    public static WireMessage delete(int ID)
+    {
+        return new WireMessage("DELETE " + ID, -1, 1,
+                () -> BinaryProtocol.encode(Operation.DELETE, out -> BinaryProtocol.writeVarint(out, ID)));
+    }
+
+    /**
+     * An APPEND_POINTS_ID: points added to a stroke.
+     *
+     * @param coordinates The coordinates of the points (x1, y1, x2, y2...), which must not be changed afterwards.
+     * @param count The number of coordinates.
+     */
+    public static WireMessage appendPointsID(int ID, int[] coordinates, int count)
+    {
+        StringBuilder text = new StringBuilder("APPEND_POINTS_ID ").append(ID);
+        for (int i = 0; i < count; i += 1)
+            text.append(' ').append(coordinates[i]);
+
+        return new WireMessage(text.toString(), -1, 1, () -> BinaryProtocol.encode(Operation.APPEND_POINTS_ID, out ->
+        {
+            BinaryProtocol.writeVarint(out, ID);
+            BinaryProtocol.writeCoordinates(out, coordinates, count);
+        }));
+    }
+
+    /**
+     * An ACK for one of a client's changes (see SketchServerSession).
+     *
+     * @param op The change's number, as the client gave it.
+     * @param seq The change's number in the room (-1 if not known).
+     */
+    public static WireMessage ack(long op, long seq)
+    {
+        return new WireMessage("ACK " + op, seq, 1, () -> BinaryProtocol.encode(Operation.ACK,
+                out -> BinaryProtocol.writeVarlong(out, (op << 1) ^ (op >> 63))));
+    }
+
+    /**
+     * Creates a batch: several messages sent (and applied by the client) together, announced by a "BATCH count" header.
+     * As text the messages are just the lines after the header; as binary, the frames after the header's frame (each
+     * message's own binary encoding, shared with anything else it is sent in).
+     *
+     * @param messages The messages, in the order they were applied.
+     * @param seq The number of the last change in the batch.
+     */
+    public static WireMessage batch(List<WireMessage> messages, long seq)
+    {
+        StringBuilder text = new StringBuilder("BATCH ").append(messages.size());
+        for (WireMessage message : messages)
+            text.append('\n').append(message.text);
+
+        return new WireMessage(text.toString(), seq, messages.size(), () ->
+        {
+            ByteArrayOutputStream frames = new ByteArrayOutputStream();
+            frames.writeBytes(BinaryProtocol.encode(Operation.BATCH,
+                    out -> BinaryProtocol.writeVarint(out, messages.size())));
+
+            for (WireMessage message : messages)
+                frames.writeBytes(message.encode(true));
+
+            return frames.toByteArray();
+        });
+    }
+
+    /**
+     * The same message with another change number (sharing any encodings already done).
+     */
+    public WireMessage renumber(long seq)
+    {
+        WireMessage message = new WireMessage(text, seq, count, fields);
+        message.textBytes = textBytes;
+        message.binaryBytes = binaryBytes;
+        return message;
+    }
+
+    public String getText()
+    {
+        return text;
+    }
+
+    public long getSeq()
+    {
+        return seq;
+    }
+
+    public int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * The bytes to put on the wire. Encoding twice (if two writers get here at once) is harmless, so there is no lock;
+     * the encodings are volatile, so a writer that sees one sees all of its bytes.
+     *
+     * @param binary Whether the client has switched to the binary protocol (otherwise, a text line).
+     */
+    public byte[] encode(boolean binary)
+    {
+        if (binary)
+        {
+            byte[] bytes = binaryBytes;
+            if (bytes == null)
+                binaryBytes = bytes = fields != null ? fields.get() : BinaryProtocol.encode(text);
+
+            return bytes;
+        }
+
+        byte[] bytes = textBytes;
+        if (bytes == null)
+            textBytes = bytes = (text + "\n").getBytes(StandardCharsets.UTF_8);
+
+        return bytes;
+    }
+
+    @Override
+    public String toString()
+    {
+        return text;
+    }
+}
@@ -0,0 +1,143 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire Reader - Reads messages from a (blocking) socket stream, as text lines until the handshake switches the
+ * connection to binary frames. A BufferedReader can't be used for this, since it would read ahead past the switch.
+ * Each message is read into the same buffer (grown as needed) and handed to a MessageDecoder from there, so reading
+ * allocates nothing per message.
+ *
+ * @author Carter Kruse & John DeForest, Dartmouth CS 10, Spring 2022
+ */
+public class WireReader
+{
+    private InputStream in; // From The Other End
+    private byte[] buffer = new byte[256]; // The message just read.
+    private int length; // How much of the buffer it fills.
+    private boolean cutOff; // Whether the line just read ran into the end of the stream, rather than a line ending.
+
+    public WireReader(InputStream in)
+    {
+        this.in = new BufferedInputStream(in);
+    }
+
+    public byte[] getBytes()
+    {
+        return buffer;
+    }
+
+    public int getLength()
+    {
+        return length;
+    }
+
+    /**
+     * Whether the text line just read was cut off by the end of the stream (such as the last line of a file that was
+     * still being written when the writer stopped).
+     */
+    public boolean isCutOff()
+    {
+        return cutOff;
+    }
+
+    /**
+     * The message just read, as text (for the handshake, which is always text).
+     */
+    public String getText()
+    {
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Whether the message just read (a text line) starts with the given ASCII prefix.
+     */
+    public boolean startsWith(String prefix)
+    {
+        if (length < prefix.length())
+            return false;
+
+        for (int i = 0; i < prefix.length(); i += 1)
+        {
+            if (buffer[i] != prefix.charAt(i))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads a text line (without the line ending).
+     *
+     * @return False at the end of the stream.
+     */
+    public boolean readLine() throws IOException
+    {
+        length = 0;
+        cutOff = false;
+
+        int b;
+        while ((b = in.read()) != '\n')
+        {
+            if (b < 0)
+            {
+                cutOff = true;
+                return length > 0;
+            }
+
+            if (length == buffer.length)
+                grow(length + 1);
+
+            buffer[length] = (byte) b;
+            length += 1;
+        }
+
+        if (length > 0 && buffer[length - 1] == '\r')
+            length -= 1;
+
+        return true;
+    }
+
+    /**
+     * Reads a binary frame (without its length).
+     *
+     * @return False at the end of the stream.
+     */
+    public boolean readFrame() throws IOException
+    {
+        // Reading the varint length (see BinaryProtocol), one byte at a time.
+        int frameLength = 0;
+        for (int shift = 0, b = 0x80; (b & 0x80) != 0; shift += 7)
+        {
+            if ((b = in.read()) < 0)
+                return false;
+
+            if (shift == 35)
+                throw new IOException("Frame length too long");
+
+            frameLength |= (b & 0x7F) << shift;
+        }
+
+        if (frameLength < 0 || frameLength > BinaryProtocol.MAX_FRAME)
+            throw new IOException("Frame too long");
+
+        length = 0;
+        if (frameLength > buffer.length)
+            grow(frameLength);
+
+        length = frameLength;
+        return in.readNBytes(buffer, 0, length) == length;
+    }
+
+    /**
+     * Helper Method - Makes the buffer big enough for a message of the given length.
+     */
+    private void grow(int needed) throws IOException
+    {
+        if (needed > BinaryProtocol.MAX_FRAME)
+            throw new IOException("Message too long");
+
+        byte[] bigger = new byte[Math.max(needed, buffer.length * 2)];
+        System.arraycopy(buffer, 0, bigger, 0, length);
+        buffer = bigger;
+    }
+}